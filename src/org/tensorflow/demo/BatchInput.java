@@ -0,0 +1,116 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import android.graphics.Bitmap;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import org.tensorflow.Operation;
+import org.tensorflow.Shape;
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.demo.env.Preprocessor;
+
+/**
+ * A preallocated [N, H, W, C] input tensor holding up to a fixed number of images, so several
+ * images can be fed to the graph at once. Each image slot is a view into the shared direct buffer,
+ * created once here, so filling and feeding a batch allocates nothing.
+ */
+final class BatchInput {
+  private final int capacity;
+  private final int inputSize;
+  private final boolean uint8;
+  private final IntBuffer pixelBuffer;
+
+  // Exactly one of these is used, depending on uint8.
+  private final FloatBuffer floatInput;
+  private final FloatBuffer[] floatSlots;
+  private final ByteBuffer byteInput;
+  private final ByteBuffer[] byteSlots;
+
+  BatchInput(final int capacity, final int inputSize, final boolean uint8) {
+    this.capacity = capacity;
+    this.inputSize = inputSize;
+    this.uint8 = uint8;
+
+    final int numPixels = inputSize * inputSize;
+    pixelBuffer = Preprocessor.allocatePixelBuffer(numPixels);
+    if (uint8) {
+      floatInput = null;
+      floatSlots = null;
+      byteInput = Preprocessor.allocateRawInputBuffer(numPixels * capacity);
+      byteSlots = new ByteBuffer[capacity];
+      for (int i = 0; i < capacity; ++i) {
+        byteInput.limit((i + 1) * numPixels * 3).position(i * numPixels * 3);
+        byteSlots[i] = byteInput.slice();
+      }
+      byteInput.clear();
+    } else {
+      byteInput = null;
+      byteSlots = null;
+      floatInput = Preprocessor.allocateInputBuffer(numPixels * capacity);
+      floatSlots = new FloatBuffer[capacity];
+      for (int i = 0; i < capacity; ++i) {
+        floatInput.limit((i + 1) * numPixels * 3).position(i * numPixels * 3);
+        floatSlots[i] = floatInput.slice();
+      }
+      floatInput.clear();
+    }
+  }
+
+  /**
+   * Returns the largest batch the graph accepts, up to requested. Graphs exported with a fixed
+   * batch dimension of 1 can only be fed one image at a time.
+   */
+  static int getBatchLimit(final Operation inputOp, final int requested) {
+    final Shape shape = inputOp.output(0).shape();
+    if (shape.numDimensions() > 0 && shape.size(0) == 1) {
+      return 1;
+    }
+    return requested;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /** Preprocesses an inputSize x inputSize ARGB_8888 bitmap into the given slot. */
+  void put(final int slot, final Bitmap bitmap, final Preprocessor preprocessor) {
+    pixelBuffer.rewind();
+    bitmap.copyPixelsToBuffer(pixelBuffer);
+    if (uint8) {
+      preprocessor.applyRawRgba(pixelBuffer, byteSlots[slot]);
+    } else {
+      preprocessor.applyRgba(pixelBuffer, floatSlots[slot]);
+    }
+  }
+
+  /** Feeds the first count slots as a single [count, H, W, 3] tensor. */
+  void feed(
+      final TensorFlowInferenceInterface inferenceInterface,
+      final String inputName,
+      final int count) {
+    final Buffer input = uint8 ? byteInput : floatInput;
+    input.clear();
+    input.limit(count * inputSize * inputSize * 3);
+    if (uint8) {
+      inferenceInterface.feed(inputName, byteInput, count, inputSize, inputSize, 3);
+    } else {
+      inferenceInterface.feed(inputName, floatInput, count, inputSize, inputSize, 3);
+    }
+  }
+}
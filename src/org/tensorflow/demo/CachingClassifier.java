@@ -0,0 +1,274 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.tensorflow.demo.env.PerceptualHash;
+
+/**
+ * A {@link Classifier} that reuses the results of a recent, near-identical input instead of
+ * running the graph again.
+ *
+ * <p>Each input is reduced to a 64-bit {@link PerceptualHash}. If a cached entry no older than the
+ * maximum age lies within the Hamming tolerance, its results are returned; otherwise the wrapped
+ * classifier runs and its results are cached. The least recently used entry is evicted when the
+ * cache is full. With a static scene, as in kiosk or fixed-mount use, most frames are hits.
+ *
+ * <p>{@link #recognizeImages} passes straight through, while asynchronous requests run through
+ * this class's own queue and so are cached too. Like the classifiers it wraps, calls from
+ * different threads are serialized.
+ */
+public class CachingClassifier extends QueuedClassifier {
+  private static class Entry {
+    final long hash;
+    final long timestampMs;
+    final DetectionBatch results;
+    List<Recognition> recognitions;
+
+    Entry(final long hash, final long timestampMs, final DetectionBatch results) {
+      this.hash = hash;
+      this.timestampMs = timestampMs;
+      this.results = results;
+    }
+  }
+
+  private final Classifier delegate;
+  private final int inputSize;
+  private final int maxDistance;
+  private final long maxAgeMs;
+  private final int capacity;
+
+  // Keyed by hash, in access order, so the first entry is the least recently used.
+  private final LinkedHashMap<Long, Entry> entries;
+
+  private final DetectionBatch scratch = new DetectionBatch(16);
+  private int[] pixels;
+
+  private int hits;
+  private int misses;
+  private int evictions;
+
+  /**
+   * @param delegate The classifier whose results are cached.
+   * @param inputSize Width and height of the delegate's square input.
+   * @param maxDistance Largest Hamming distance, out of 64 bits, at which two inputs count as the
+   *     same.
+   * @param maxAgeMs Cached results older than this are never returned.
+   * @param capacity Number of distinct inputs remembered.
+   */
+  public CachingClassifier(
+      final Classifier delegate,
+      final int inputSize,
+      final int maxDistance,
+      final long maxAgeMs,
+      final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.delegate = delegate;
+    this.inputSize = inputSize;
+    this.maxDistance = maxDistance;
+    this.maxAgeMs = maxAgeMs;
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<Long, Entry>(capacity * 2, 0.75f, true);
+  }
+
+  public synchronized int getHitCount() {
+    return hits;
+  }
+
+  public synchronized int getMissCount() {
+    return misses;
+  }
+
+  /** The number of entries dropped for age or to make room. */
+  public synchronized int getEvictionCount() {
+    return evictions;
+  }
+
+  /** Drops every cached result, e.g. when the camera or crop changes. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the cached list on a hit. It is shared with later hits, so callers must not modify it
+   * or the Recognitions in it.
+   */
+  @Override
+  public synchronized List<Recognition> recognizeImage(final Bitmap bitmap) {
+    final int numPixels = bitmap.getWidth() * bitmap.getHeight();
+    if (pixels == null || pixels.length != numPixels) {
+      pixels = new int[numPixels];
+    }
+    bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    final long hash = PerceptualHash.dHash(pixels, bitmap.getWidth(), bitmap.getHeight());
+
+    Entry entry = lookup(hash, false);
+    if (entry == null) {
+      final List<Recognition> recognitions = delegate.recognizeImage(bitmap);
+      entry = store(hash, null);
+      entry.recognitions = Collections.unmodifiableList(recognitions);
+    }
+    return recognitions(entry);
+  }
+
+  /** See {@link #recognizeImage(Bitmap)} for the sharing of the returned list. */
+  @Override
+  public synchronized List<Recognition> recognizeImage(final float[] pixels) {
+    final long hash = PerceptualHash.dHash(pixels, inputSize, inputSize);
+    Entry entry = lookup(hash, true);
+    if (entry == null) {
+      delegate.recognizeImage(pixels, scratch);
+      entry = store(hash, scratch);
+    }
+    return recognitions(entry);
+  }
+
+  /** See {@link #recognizeImage(Bitmap)} for the sharing of the returned list. */
+  @Override
+  public synchronized List<Recognition> recognizeImage(final byte[] pixels) {
+    final long hash = PerceptualHash.dHash(pixels, inputSize, inputSize);
+    Entry entry = lookup(hash, true);
+    if (entry == null) {
+      delegate.recognizeImage(pixels, scratch);
+      entry = store(hash, scratch);
+    }
+    return recognitions(entry);
+  }
+
+  @Override
+  public synchronized void recognizeImage(final float[] pixels, final DetectionBatch results) {
+    final long hash = PerceptualHash.dHash(pixels, inputSize, inputSize);
+    final Entry entry = lookup(hash, true);
+    if (entry != null) {
+      results.copyFrom(entry.results);
+      return;
+    }
+    delegate.recognizeImage(pixels, results);
+    store(hash, results);
+  }
+
+  @Override
+  public synchronized void recognizeImage(final byte[] pixels, final DetectionBatch results) {
+    final long hash = PerceptualHash.dHash(pixels, inputSize, inputSize);
+    final Entry entry = lookup(hash, true);
+    if (entry != null) {
+      results.copyFrom(entry.results);
+      return;
+    }
+    delegate.recognizeImage(pixels, results);
+    store(hash, results);
+  }
+
+  @Override
+  public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    return delegate.recognizeImages(bitmaps);
+  }
+
+  @Override
+  public boolean hasUint8Input() {
+    return delegate.hasUint8Input();
+  }
+
+  @Override
+  public void enableStatLogging(final boolean debug) {
+    delegate.enableStatLogging(debug);
+  }
+
+  @Override
+  public synchronized String getStatString() {
+    return delegate.getStatString()
+        + "\nCache: "
+        + hits
+        + " hits, "
+        + misses
+        + " misses, "
+        + evictions
+        + " evictions";
+  }
+
+  @Override
+  protected void closeSession() {
+    entries.clear();
+    delegate.close();
+  }
+
+  /**
+   * Returns the closest live entry within the tolerance, or null, dropping expired entries. Entries
+   * cached from Bitmaps only hold a list, so they are skipped when needsBatch is set.
+   */
+  private Entry lookup(final long hash, final boolean needsBatch) {
+    final long now = SystemClock.uptimeMillis();
+    Entry best = null;
+    int bestDistance = maxDistance + 1;
+    final Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      final Entry entry = it.next();
+      if (now - entry.timestampMs > maxAgeMs) {
+        it.remove();
+        ++evictions;
+        continue;
+      }
+      if (needsBatch && entry.results == null) {
+        continue;
+      }
+      final int distance = PerceptualHash.distance(hash, entry.hash);
+      if (distance < bestDistance) {
+        best = entry;
+        bestDistance = distance;
+      }
+    }
+    if (best == null) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    // Touch it, moving it to the most recently used end.
+    entries.get(best.hash);
+    return best;
+  }
+
+  /** Caches a copy of results, or an entry for a list if results is null, under hash. */
+  private Entry store(final long hash, final DetectionBatch results) {
+    if (!entries.containsKey(hash) && entries.size() >= capacity) {
+      final Iterator<Entry> eldest = entries.values().iterator();
+      eldest.next();
+      eldest.remove();
+      ++evictions;
+    }
+    DetectionBatch copy = null;
+    if (results != null) {
+      copy = new DetectionBatch(results.size());
+      copy.copyFrom(results);
+    }
+    final Entry entry = new Entry(hash, SystemClock.uptimeMillis(), copy);
+    entries.put(hash, entry);
+    return entry;
+  }
+
+  private static List<Recognition> recognitions(final Entry entry) {
+    if (entry.recognitions == null) {
+      entry.recognitions = Collections.unmodifiableList(entry.results.toRecognitions());
+    }
+    return entry.recognitions;
+  }
+}
@@ -16,8 +16,12 @@ limitations under the License.
 package org.tensorflow.demo;
 
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Generic interface for interacting with different recognition engines.
@@ -97,8 +101,251 @@ public interface Classifier {
     }
   }
 
+  /**
+   * Reusable recognition results held in parallel primitive arrays, one entry per result, so that
+   * steady-state result handling allocates nothing. Boxes are stored as consecutive (left, top,
+   * right, bottom) quadruples; results without a location have NaN coordinates.
+   *
+   * <p>The array getters return the backing arrays themselves, valid for the first {@link #size()}
+   * entries until the batch is next written. Use {@link #toRecognitions()} where a
+   * {@code List<Recognition>} is needed.
+   */
+  public class DetectionBatch {
+    private int[] ids;
+    private int[] classIds;
+    private float[] scores;
+    private float[] boxes;
+    private int size;
+
+    // Display names indexed by class id, shared with the producer; may be null.
+    private String[] labels;
+
+    private final RectF scratchRect = new RectF();
+
+    public DetectionBatch(final int capacity) {
+      ids = new int[capacity];
+      classIds = new int[capacity];
+      scores = new float[capacity];
+      boxes = new float[capacity * 4];
+    }
+
+    /** Empties the batch and sets the labels its class ids refer to. */
+    public void clear(final String[] labels) {
+      this.labels = labels;
+      size = 0;
+    }
+
+    /** Appends a result without a location. */
+    public void add(final int id, final int classId, final float score) {
+      add(id, classId, score, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+    }
+
+    /** Appends a result, growing the arrays if needed. */
+    public void add(
+        final int id,
+        final int classId,
+        final float score,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom) {
+      if (size == scores.length) {
+        final int capacity = Math.max(8, size * 2);
+        ids = Arrays.copyOf(ids, capacity);
+        classIds = Arrays.copyOf(classIds, capacity);
+        scores = Arrays.copyOf(scores, capacity);
+        boxes = Arrays.copyOf(boxes, capacity * 4);
+      }
+      ids[size] = id;
+      classIds[size] = classId;
+      scores[size] = score;
+      boxes[4 * size] = left;
+      boxes[4 * size + 1] = top;
+      boxes[4 * size + 2] = right;
+      boxes[4 * size + 3] = bottom;
+      ++size;
+    }
+
+    /** Replaces the contents of this batch with a copy of other's. */
+    public void copyFrom(final DetectionBatch other) {
+      clear(other.labels);
+      for (int i = 0; i < other.size; ++i) {
+        add(
+            other.ids[i],
+            other.classIds[i],
+            other.scores[i],
+            other.boxes[4 * i],
+            other.boxes[4 * i + 1],
+            other.boxes[4 * i + 2],
+            other.boxes[4 * i + 3]);
+      }
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int[] getIds() {
+      return ids;
+    }
+
+    public int[] getClassIds() {
+      return classIds;
+    }
+
+    public float[] getScores() {
+      return scores;
+    }
+
+    public float[] getBoxes() {
+      return boxes;
+    }
+
+    public String getTitle(final int index) {
+      final int classId = classIds[index];
+      if (labels == null) {
+        return null;
+      }
+      return classId < labels.length ? labels[classId] : "unknown";
+    }
+
+    public boolean hasLocation(final int index) {
+      return !Float.isNaN(boxes[4 * index]);
+    }
+
+    /** Copies the location of one result into out and returns it. */
+    public RectF getLocation(final int index, final RectF out) {
+      out.set(boxes[4 * index], boxes[4 * index + 1], boxes[4 * index + 2], boxes[4 * index + 3]);
+      return out;
+    }
+
+    /** Maps every location through the given transform, in place. */
+    public void mapLocations(final Matrix transform) {
+      for (int i = 0; i < size; ++i) {
+        if (hasLocation(i)) {
+          transform.mapRect(getLocation(i, scratchRect));
+          boxes[4 * i] = scratchRect.left;
+          boxes[4 * i + 1] = scratchRect.top;
+          boxes[4 * i + 2] = scratchRect.right;
+          boxes[4 * i + 3] = scratchRect.bottom;
+        }
+      }
+    }
+
+    /** Drops the results scoring below minScore, keeping the order of the rest. */
+    public void retainAtLeast(final float minScore) {
+      int kept = 0;
+      for (int i = 0; i < size; ++i) {
+        if (scores[i] >= minScore) {
+          if (kept != i) {
+            ids[kept] = ids[i];
+            classIds[kept] = classIds[i];
+            scores[kept] = scores[i];
+            System.arraycopy(boxes, 4 * i, boxes, 4 * kept, 4);
+          }
+          ++kept;
+        }
+      }
+      size = kept;
+    }
+
+    /** Builds a standalone Recognition for one result. */
+    public Recognition toRecognition(final int index) {
+      return new Recognition(
+          "" + ids[index],
+          getTitle(index),
+          scores[index],
+          hasLocation(index) ? getLocation(index, new RectF()) : null);
+    }
+
+    /** Adapts the batch to the list form used by {@link #recognizeImage(Bitmap)}. */
+    public List<Recognition> toRecognitions() {
+      final List<Recognition> recognitions = new ArrayList<Recognition>(size);
+      for (int i = 0; i < size; ++i) {
+        recognitions.add(toRecognition(i));
+      }
+      return recognitions;
+    }
+  }
+
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Runs recognition on input that has already been resized and normalized into the layout the
+   * model expects, e.g. by {@link org.tensorflow.demo.env.YuvFrameConverter}.
+   *
+   * @param pixels Normalized channel values in [H, W, C] order.
+   */
+  List<Recognition> recognizeImage(float[] pixels);
+
+  /**
+   * Runs recognition on raw uint8 input, for models whose graph takes uint8 and does its own
+   * normalization (see {@link #hasUint8Input()}).
+   *
+   * @param pixels Raw 0-255 channel values in [H, W, C] order.
+   */
+  List<Recognition> recognizeImage(byte[] pixels);
+
+  /**
+   * Like {@link #recognizeImage(float[])}, but writes the results into a caller-owned batch that
+   * can be reused across frames instead of allocating a result object per recognition.
+   */
+  void recognizeImage(float[] pixels, DetectionBatch results);
+
+  /** The uint8 counterpart of {@link #recognizeImage(float[], DetectionBatch)}. */
+  void recognizeImage(byte[] pixels, DetectionBatch results);
+
+  /**
+   * Recognizes several images, feeding up to a batch's worth of them to the graph in a single run
+   * instead of one run per image. Offline work such as tagging a gallery then pays the per-run
+   * overhead once per batch. Graphs with a fixed batch dimension of 1 fall back to one image per
+   * run.
+   *
+   * @param bitmaps ARGB_8888 bitmaps of the model's input size.
+   * @return One result list per bitmap, in the same order.
+   */
+  List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps);
+
+  /** Receives the results of an asynchronous recognition. */
+  interface Callback {
+    /** Called on the classifier's worker thread as soon as the results are ready. */
+    void onResults(List<Recognition> results);
+  }
+
+  /**
+   * Queues recognition of a copy of pixels on the classifier's worker thread and returns at once,
+   * unless the queue policy is {@link RecognitionQueue.Policy#BLOCK} and the queue is full. The
+   * caller may reuse pixels as soon as this returns.
+   *
+   * <p>Requests run in order. If the policy drops a request, its future is cancelled and its
+   * callback never runs; cancelling the future before the request starts has the same effect.
+   * Synchronous calls may still be made from any thread: they wait for the running request, if
+   * any, and never overlap it.
+   *
+   * @param callback Optional; receives the results before the future completes.
+   */
+  Future<List<Recognition>> recognizeImageAsync(float[] pixels, Callback callback);
+
+  /** The uint8 counterpart of {@link #recognizeImageAsync(float[], Callback)}. */
+  Future<List<Recognition>> recognizeImageAsync(byte[] pixels, Callback callback);
+
+  /**
+   * Bounds the asynchronous queue to capacity waiting requests, beyond the running one, and chooses
+   * what happens to requests that do not fit. Defaults to 1 and
+   * {@link RecognitionQueue.Policy#DROP_NEWEST}.
+   */
+  void setQueuePolicy(int capacity, RecognitionQueue.Policy policy);
+
+  /** The number of asynchronous requests waiting or running. */
+  int getQueueDepth();
+
+  /**
+   * Returns true if the loaded graph takes a uint8 input tensor. This is decided when the model is
+   * loaded; such models must be fed through {@link #recognizeImage(byte[])} rather than
+   * {@link #recognizeImage(float[])}.
+   */
+  boolean hasUint8Input();
+
   void enableStatLogging(final boolean debug);
   
   String getStatString();
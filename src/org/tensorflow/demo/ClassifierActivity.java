@@ -33,10 +33,16 @@ import android.util.TypedValue;
 import android.view.Display;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
 import org.tensorflow.demo.OverlayView.DrawCallback;
+import org.tensorflow.demo.env.BitmapPool;
 import org.tensorflow.demo.env.BorderedText;
+import org.tensorflow.demo.env.FrameResampler;
 import org.tensorflow.demo.env.ImageUtils;
 import org.tensorflow.demo.env.Logger;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.Preprocessor.ChannelOrder;
+import org.tensorflow.demo.env.YuvFrameConverter;
 import org.tensorflow.demo.R;
 
 public class ClassifierActivity extends CameraActivity implements OnImageAvailableListener {
@@ -72,6 +78,20 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
 
   private static final boolean MAINTAIN_ASPECT = true;
 
+  // Frames whose perceptual hashes differ in at most this many of 64 bits reuse results cached
+  // within the last CACHE_MAX_AGE_MS instead of running the model again.
+  private static final int CACHE_MAX_DISTANCE = 3;
+  private static final long CACHE_MAX_AGE_MS = 2000;
+  private static final int CACHE_CAPACITY = 8;
+
+  // Idle debug bitmaps kept for reuse; a few crops' worth.
+  private static final long BITMAP_POOL_BYTES = 2 * 1024 * 1024;
+
+  // Inferences run on a synthetic input while loading, so the first real frame runs at full speed.
+  private static final int WARM_UP_RUNS = 1;
+
+  private ClassifierLoader classifierLoader;
+  // Null until the loader reports the model ready.
   private Classifier classifier;
 
   private Integer sensorOrientation;
@@ -79,15 +99,24 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
   private int previewWidth = 0;
   private int previewHeight = 0;
   private byte[][] yuvBytes;
-  private int[] rgbBytes = null;
-  private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
 
+  // The crop shown in the debug overlay. Only touched on the UI thread, which releases it once the
+  // next crop replaces it and so can no longer be drawing it.
   private Bitmap cropCopyBitmap;
+  // The newest crop, waiting for the UI thread to show it.
+  private final AtomicReference<Bitmap> pendingCropCopyBitmap = new AtomicReference<Bitmap>();
+  // Debug copies of the crop are recycled through here instead of allocated per frame.
+  private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
 
-  private boolean computing = false;
+  private YuvFrameConverter yuvConverter;
+  private float[] floatValues;
+  // Raw model input, used instead of floatValues when the graph takes uint8 input.
+  private byte[] byteValues;
+
+  private boolean renderCrop = false;
 
   private Matrix frameToCropTransform;
+  private int[] croppedPixels = null;
   private Matrix cropToFrameTransform;
 
   private ResultsView resultsView;
@@ -116,16 +145,42 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     borderedText = new BorderedText(textSizePx);
     borderedText.setTypeface(Typeface.MONOSPACE);
 
-    classifier =
-        TensorFlowImageClassifier.create(
-            getAssets(),
-            MODEL_FILE,
-            LABEL_FILE,
+    if (classifierLoader != null) {
+      // The model stays loaded in the registry, so this only drops our reference.
+      if (classifier != null) {
+        classifier.close();
+        classifier = null;
+      }
+      classifierLoader.close();
+    }
+    final ClassifierPool.Factory factory =
+        new ClassifierPool.Factory() {
+          @Override
+          public Classifier create() {
+            return TensorFlowImageClassifier.create(
+                getAssets(),
+                MODEL_FILE,
+                LABEL_FILE,
+                INPUT_SIZE,
+                IMAGE_MEAN,
+                IMAGE_STD,
+                INPUT_NAME,
+                OUTPUT_NAME,
+                getCacheDir());
+          }
+        };
+    // Load off the camera callback path, or reuse the model if another activity left it loaded;
+    // frames are dropped until it is ready.
+    classifierLoader =
+        ClassifierLoader.start(
+            new ClassifierPool.Factory() {
+              @Override
+              public Classifier create() {
+                return ModelRegistry.getInstance().acquireClassifier(MODEL_FILE, factory);
+              }
+            },
             INPUT_SIZE,
-            IMAGE_MEAN,
-            IMAGE_STD,
-            INPUT_NAME,
-            OUTPUT_NAME);
+            WARM_UP_RUNS);
 
     resultsView = (ResultsView) findViewById(R.id.results);
     previewWidth = size.getWidth();
@@ -139,9 +194,6 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     sensorOrientation = rotation + screenOrientation;
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbBytes = new int[previewWidth * previewHeight];
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-    croppedBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Config.ARGB_8888);
 
     frameToCropTransform =
         ImageUtils.getTransformationMatrix(
@@ -152,6 +204,20 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
     cropToFrameTransform = new Matrix();
     frameToCropTransform.invert(cropToFrameTransform);
 
+    final FrameResampler frameResampler =
+        new FrameResampler(
+            previewWidth, previewHeight,
+            INPUT_SIZE, INPUT_SIZE,
+            sensorOrientation, MAINTAIN_ASPECT,
+            FrameResampler.Mode.NEAREST);
+    croppedPixels = new int[INPUT_SIZE * INPUT_SIZE];
+
+    yuvConverter =
+        new YuvFrameConverter(
+            frameResampler,
+            new Preprocessor(
+                Preprocessor.Spec.uniform(ChannelOrder.RGB, IMAGE_MEAN, IMAGE_STD)));
+
     yuvBytes = new byte[3][];
 
     addCallback(
@@ -174,31 +240,54 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
         return;
       }
 
-      if (computing) {
+      if (classifier == null && !takeReadyClassifier()) {
+        // Not ready yet; answer nothing rather than block the camera.
         image.close();
         return;
       }
-      computing = true;
 
       Trace.beginSection("imageAvailable");
 
+      renderCrop = SAVE_PREVIEW_BITMAP || isDebug();
+
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
 
       final int yRowStride = planes[0].getRowStride();
       final int uvRowStride = planes[1].getRowStride();
       final int uvPixelStride = planes[1].getPixelStride();
-      ImageUtils.convertYUV420ToARGB8888(
-          yuvBytes[0],
-          yuvBytes[1],
-          yuvBytes[2],
-          rgbBytes,
-          previewWidth,
-          previewHeight,
-          yRowStride,
-          uvRowStride,
-          uvPixelStride,
-          false);
+      if (byteValues != null) {
+        yuvConverter.convert(
+            yuvBytes[0],
+            yuvBytes[1],
+            yuvBytes[2],
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            byteValues);
+      } else {
+        yuvConverter.convert(
+            yuvBytes[0],
+            yuvBytes[1],
+            yuvBytes[2],
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            floatValues);
+      }
+
+      // The model input is produced directly from the YUV planes above; the ARGB crop is only
+      // needed to show or save what the model sees, and converts just the pixels it samples.
+      if (renderCrop) {
+        yuvConverter.convertToArgb(
+            yuvBytes[0],
+            yuvBytes[1],
+            yuvBytes[2],
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            croppedPixels);
+      }
 
       image.close();
     } catch (final Exception e) {
@@ -210,39 +299,92 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
       return;
     }
 
-    rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+    if (renderCrop) {
+      final Bitmap copy = bitmapPool.acquireBitmap(INPUT_SIZE, INPUT_SIZE, Config.ARGB_8888);
+      copy.setPixels(croppedPixels, 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
 
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
+      // For examining the actual TF input.
+      if (SAVE_PREVIEW_BITMAP) {
+        ImageUtils.saveBitmap(copy);
+      }
+      showCropCopy(copy);
     }
 
-    runInBackground(
-        new Runnable() {
+    // The classifier copies the input and keeps only the newest frame waiting behind the one
+    // being recognized, so the camera thread never blocks and results are never stale.
+    final long startTime = SystemClock.uptimeMillis();
+    final Classifier.Callback callback =
+        new Classifier.Callback() {
           @Override
-          public void run() {
-            final long startTime = SystemClock.uptimeMillis();
-            final List<Classifier.Recognition> results = classifier.recognizeImage(croppedBitmap);
+          public void onResults(final List<Classifier.Recognition> results) {
             lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-            cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
             resultsView.setResults(results);
             requestRender();
-            computing = false;
           }
-        });
+        };
+    if (byteValues != null) {
+      classifier.recognizeImageAsync(byteValues, callback);
+    } else {
+      classifier.recognizeImageAsync(floatValues, callback);
+    }
 
     Trace.endSection();
   }
 
+  /**
+   * Hands copy to the UI thread for the debug overlay. A copy still waiting was never drawn, so it
+   * goes straight back to the pool; the one on screen is released by the UI thread.
+   */
+  private void showCropCopy(final Bitmap copy) {
+    bitmapPool.release(pendingCropCopyBitmap.getAndSet(copy));
+  }
+
+  /** Takes over the classifier once it has loaded, returning false while it is still loading. */
+  private boolean takeReadyClassifier() {
+    final Classifier loaded = classifierLoader.getIfReady();
+    if (loaded == null) {
+      return false;
+    }
+    LOGGER.i("Classifier ready %d ms after loading started", classifierLoader.getTimeToReadyMs());
+    if (loaded.hasUint8Input()) {
+      byteValues = new byte[INPUT_SIZE * INPUT_SIZE * 3];
+    } else {
+      floatValues = new float[INPUT_SIZE * INPUT_SIZE * 3];
+    }
+    loaded.enableStatLogging(isDebug());
+    classifier =
+        new CachingClassifier(
+            loaded, INPUT_SIZE, CACHE_MAX_DISTANCE, CACHE_MAX_AGE_MS, CACHE_CAPACITY);
+    classifier.setQueuePolicy(1, RecognitionQueue.Policy.KEEP_LATEST);
+    return true;
+  }
+
+  @Override
+  public synchronized void onDestroy() {
+    // Stops the classifier's queue and releases the shared model.
+    if (classifier != null) {
+      classifier.close();
+    }
+    if (classifierLoader != null) {
+      classifierLoader.close();
+    }
+    super.onDestroy();
+  }
+
   @Override
   public void onSetDebug(boolean debug) {
-    classifier.enableStatLogging(debug);
+    if (classifier != null) {
+      classifier.enableStatLogging(debug);
+    }
   }
 
   private void renderDebug(final Canvas canvas) {
+    // Draws run one at a time on this thread, so the crop being replaced is done with.
+    final Bitmap newCopy = pendingCropCopyBitmap.getAndSet(null);
+    if (newCopy != null) {
+      bitmapPool.release(cropCopyBitmap);
+      cropCopyBitmap = newCopy;
+    }
     if (!isDebug()) {
       return;
     }
@@ -269,7 +411,9 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
       lines.add("Crop: " + copy.getWidth() + "x" + copy.getHeight());
       lines.add("View: " + canvas.getWidth() + "x" + canvas.getHeight());
       lines.add("Rotation: " + sensorOrientation);
-      lines.add("Inference time: " + lastProcessingTimeMs + "ms");
+      lines.add("Latency: " + lastProcessingTimeMs + "ms");
+      lines.add("Model ready in: " + classifierLoader.getTimeToReadyMs() + "ms");
+      lines.add(bitmapPool.getStatString());
 
       borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, lines);
     }
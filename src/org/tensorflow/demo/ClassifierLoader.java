@@ -0,0 +1,187 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import android.os.SystemClock;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.tensorflow.demo.Classifier.DetectionBatch;
+import org.tensorflow.demo.env.Logger;
+
+/**
+ * Loads a classifier, with its labels or priors, off the calling thread and warms it up before
+ * reporting it ready.
+ *
+ * <p>Creating a classifier reads and parses the graph, and the first inference then pays a further
+ * one-time initialization cost. Both happen here in the background, with the warm-up runs fed a
+ * constant input (raw 128 for uint8 graphs, all zeros for float graphs), so the first camera frame
+ * answered is answered at full speed. Frame handlers poll {@link #getIfReady}, which never blocks,
+ * and treat null as "not ready yet".
+ */
+public class ClassifierLoader {
+  private static final Logger LOGGER = new Logger();
+
+  private final FutureTask<Classifier> task;
+  private final long startMs;
+  private volatile long readyMs = -1;
+
+  // Guarded by this. A load that finishes after close() closes its classifier itself.
+  private boolean closed;
+  private Classifier loaded;
+
+  /**
+   * Starts loading on a new background thread.
+   *
+   * @param factory Creates the classifier.
+   * @param inputSize Width and height of the classifier's square input.
+   * @param numWarmUpRuns Number of inferences run before the classifier is reported ready.
+   */
+  public static ClassifierLoader start(
+      final ClassifierPool.Factory factory, final int inputSize, final int numWarmUpRuns) {
+    return start(
+        new Executor() {
+          @Override
+          public void execute(final Runnable command) {
+            final Thread thread = new Thread(command, "ClassifierLoader");
+            thread.setDaemon(true);
+            thread.start();
+          }
+        },
+        factory,
+        inputSize,
+        numWarmUpRuns);
+  }
+
+  /** Like {@link #start(ClassifierPool.Factory, int, int)}, loading on the given executor. */
+  public static ClassifierLoader start(
+      final Executor executor,
+      final ClassifierPool.Factory factory,
+      final int inputSize,
+      final int numWarmUpRuns) {
+    final ClassifierLoader loader = new ClassifierLoader(factory, inputSize, numWarmUpRuns);
+    executor.execute(loader.task);
+    return loader;
+  }
+
+  private ClassifierLoader(
+      final ClassifierPool.Factory factory, final int inputSize, final int numWarmUpRuns) {
+    startMs = SystemClock.uptimeMillis();
+    task =
+        new FutureTask<Classifier>(
+            new Callable<Classifier>() {
+              @Override
+              public Classifier call() {
+                final Classifier classifier = factory.create();
+                LOGGER.i("Loaded model in %d ms", SystemClock.uptimeMillis() - startMs);
+                warmUp(classifier, inputSize, numWarmUpRuns);
+                synchronized (ClassifierLoader.this) {
+                  if (closed) {
+                    classifier.close();
+                    throw new CancellationException("Closed while loading");
+                  }
+                  loaded = classifier;
+                }
+                readyMs = SystemClock.uptimeMillis();
+                LOGGER.i("Model ready after %d ms", readyMs - startMs);
+                return classifier;
+              }
+            });
+  }
+
+  /** The loaded and warmed-up classifier, for callers that want to wait or be notified. */
+  public Future<Classifier> getFuture() {
+    return task;
+  }
+
+  public boolean isReady() {
+    return task.isDone() && !task.isCancelled();
+  }
+
+  /**
+   * Returns the classifier if it is loaded and warmed up, or null without blocking if it is not.
+   *
+   * @throws RuntimeException if loading failed or was cancelled.
+   */
+  public Classifier getIfReady() {
+    if (!task.isDone()) {
+      return null;
+    }
+    try {
+      return task.get();
+    } catch (final InterruptedException e) {
+      // Cannot happen for a completed task.
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (final ExecutionException e) {
+      throw new RuntimeException("Failed to load the model", e.getCause());
+    }
+  }
+
+  /** Milliseconds from {@link #start} until the classifier was ready, or -1 until then. */
+  public long getTimeToReadyMs() {
+    final long ready = readyMs;
+    return ready >= 0 ? ready - startMs : -1;
+  }
+
+  /**
+   * Cancels loading, and closes the classifier once it is loaded, whether that has happened yet or
+   * not.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (loaded != null) {
+        loaded.close();
+        loaded = null;
+      }
+    }
+    task.cancel(false);
+  }
+
+  private static void warmUp(
+      final Classifier classifier, final int inputSize, final int numWarmUpRuns) {
+    if (numWarmUpRuns <= 0) {
+      return;
+    }
+    final DetectionBatch results = new DetectionBatch(8);
+    final int numValues = inputSize * inputSize * 3;
+    final long startMs = SystemClock.uptimeMillis();
+    if (classifier.hasUint8Input()) {
+      final byte[] pixels = new byte[numValues];
+      Arrays.fill(pixels, (byte) 128);
+      for (int i = 0; i < numWarmUpRuns; ++i) {
+        classifier.recognizeImage(pixels, results);
+      }
+    } else {
+      // All zeros. What that encodes depends on the model's normalization (black for x / 255,
+      // mid-gray for mean 128), but any well-formed input warms the graph up.
+      final float[] pixels = new float[numValues];
+      for (int i = 0; i < numWarmUpRuns; ++i) {
+        classifier.recognizeImage(pixels, results);
+      }
+    }
+    LOGGER.i("Ran %d warm-up inferences in %d ms", numWarmUpRuns,
+        SystemClock.uptimeMillis() - startMs);
+  }
+}
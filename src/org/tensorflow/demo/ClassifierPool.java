@@ -0,0 +1,218 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import org.tensorflow.demo.Classifier.Recognition;
+import org.tensorflow.demo.env.Logger;
+
+/**
+ * Several independent sessions of the same model, for classifying many images concurrently.
+ *
+ * <p>A {@link Classifier} owns its session and its preallocated buffers, so it can only classify
+ * one image at a time. The pool creates one classifier per session and runs work on a
+ * work-stealing {@link ForkJoinPool} whose parallelism equals the number of sessions. Each task
+ * borrows an idle session for the duration of a single recognition.
+ *
+ * <p>Use {@link #submit} for individual bitmaps and {@link #classifyFiles} for bulk work such as
+ * tagging a photo library. The bulk call splits the file list recursively, so idle workers steal
+ * the remaining halves from busy ones instead of waiting on a fixed partition.
+ */
+public class ClassifierPool {
+  private static final Logger LOGGER = new Logger();
+
+  /** Creates one session of the pooled model; called once per session. */
+  public interface Factory {
+    Classifier create();
+  }
+
+  private final ForkJoinPool executor;
+  private final BlockingQueue<Classifier> idleSessions;
+  private final List<Classifier> sessions;
+  private final int inputSize;
+
+  /**
+   * @param factory Creates each session.
+   * @param numSessions Number of sessions, and the number of images classified at once.
+   * @param inputSize Decoded files are scaled to inputSize x inputSize before classification.
+   */
+  public static ClassifierPool create(
+      final Factory factory, final int numSessions, final int inputSize) {
+    if (numSessions < 1) {
+      throw new IllegalArgumentException("numSessions must be positive: " + numSessions);
+    }
+    final List<Classifier> sessions = new ArrayList<Classifier>(numSessions);
+    for (int i = 0; i < numSessions; ++i) {
+      sessions.add(factory.create());
+    }
+    LOGGER.i("Created %d sessions", numSessions);
+    return new ClassifierPool(sessions, inputSize);
+  }
+
+  private ClassifierPool(final List<Classifier> sessions, final int inputSize) {
+    this.sessions = Collections.unmodifiableList(sessions);
+    this.inputSize = inputSize;
+    this.idleSessions = new ArrayBlockingQueue<Classifier>(sessions.size(), false, sessions);
+    this.executor = new ForkJoinPool(sessions.size());
+  }
+
+  public int getNumSessions() {
+    return sessions.size();
+  }
+
+  /**
+   * Queues a bitmap of the model's input size for classification on the next idle session. The
+   * bitmap must not be modified until the returned future completes.
+   */
+  public Future<List<Recognition>> submit(final Bitmap bitmap) {
+    return executor.submit(
+        new Callable<List<Recognition>>() {
+          @Override
+          public List<Recognition> call() throws InterruptedException {
+            return recognize(bitmap);
+          }
+        });
+  }
+
+  /**
+   * Decodes, scales and classifies every file, spread across all sessions.
+   *
+   * @return A future of one result list per file, in the same order. Files that cannot be decoded
+   *     get an empty list.
+   */
+  public Future<List<List<Recognition>>> classifyFiles(final List<File> files) {
+    final File[] input = files.toArray(new File[files.size()]);
+    @SuppressWarnings("unchecked")
+    final List<Recognition>[] results = (List<Recognition>[]) new List<?>[input.length];
+    final ForkJoinTask<Void> task = new FileRange(input, results, 0, input.length);
+    return executor.submit(
+        new Callable<List<List<Recognition>>>() {
+          @Override
+          public List<List<Recognition>> call() {
+            // Runs on a worker, so the forked halves go onto its deque to be stolen.
+            task.invoke();
+            return Arrays.asList(results);
+          }
+        });
+  }
+
+  /** Stops accepting work, waits for queued work to finish, and closes every session. */
+  public void close() {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        LOGGER.i("Waiting for classification to finish.");
+      }
+    } catch (final InterruptedException e) {
+      LOGGER.w(e, "Interrupted while waiting; closing sessions anyway.");
+      Thread.currentThread().interrupt();
+    }
+    for (final Classifier session : sessions) {
+      session.close();
+    }
+  }
+
+  /** Classifies on an idle session, waiting for one if all are busy. */
+  private List<Recognition> recognize(final Bitmap bitmap) throws InterruptedException {
+    final Classifier session = idleSessions.take();
+    try {
+      return session.recognizeImage(bitmap);
+    } finally {
+      idleSessions.add(session);
+    }
+  }
+
+  private List<Recognition> recognizeFile(final File file) throws InterruptedException {
+    // Decode at the smallest power-of-two reduction that still covers the input size, so that
+    // full-resolution photos are never held in memory.
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    options.inSampleSize = 1;
+    while (options.outWidth / (options.inSampleSize * 2) >= inputSize
+        && options.outHeight / (options.inSampleSize * 2) >= inputSize) {
+      options.inSampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+    final Bitmap decoded = BitmapFactory.decodeFile(file.getPath(), options);
+    if (decoded == null) {
+      LOGGER.w("Could not decode %s", file);
+      return Collections.emptyList();
+    }
+    final Bitmap scaled = Bitmap.createScaledBitmap(decoded, inputSize, inputSize, true);
+    if (scaled != decoded) {
+      decoded.recycle();
+    }
+    try {
+      return recognize(scaled);
+    } finally {
+      scaled.recycle();
+    }
+  }
+
+  /** Classifies files [start, end), splitting in halves down to single files. */
+  private class FileRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final File[] files;
+    private final List<Recognition>[] results;
+    private final int start;
+    private final int end;
+
+    FileRange(
+        final File[] files, final List<Recognition>[] results, final int start, final int end) {
+      this.files = files;
+      this.results = results;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start > 1) {
+        final int mid = (start + end) >>> 1;
+        invokeAll(
+            new FileRange(files, results, start, mid), new FileRange(files, results, mid, end));
+        return;
+      }
+      if (end == start) {
+        return;
+      }
+      try {
+        results[start] = recognizeFile(files[start]);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while classifying " + files[start], e);
+      }
+    }
+  }
+}
@@ -34,13 +34,21 @@ import android.os.Trace;
 import android.util.Size;
 import android.util.TypedValue;
 import android.view.Display;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
 import org.tensorflow.demo.OverlayView.DrawCallback;
+import org.tensorflow.demo.env.BitmapPool;
 import org.tensorflow.demo.env.BorderedText;
+import org.tensorflow.demo.env.FramePipeline;
+import org.tensorflow.demo.env.FrameResampler;
 import org.tensorflow.demo.env.ImageUtils;
 import org.tensorflow.demo.env.Logger;
+import org.tensorflow.demo.env.MotionGate;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.Preprocessor.ChannelOrder;
+import org.tensorflow.demo.env.YuvFrameConverter;
 import org.tensorflow.demo.tracking.MultiBoxTracker;
 import org.tensorflow.demo.R;
 
@@ -61,6 +69,8 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   private static final String MB_MODEL_FILE = "file:///android_asset/multibox_model.pb";
   private static final String MB_LOCATION_FILE =
       "file:///android_asset/multibox_location_priors.txt";
+  // Only the best this many MultiBox locations are decoded each frame.
+  private static final int MB_MAX_RESULTS = 100;
 
   // Configuration values for tiny-yolo-voc. Note that the graph is not included with TensorFlow and
   // must be manually placed in the assets/ directory by the user.
@@ -83,36 +93,71 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   private static final boolean MAINTAIN_ASPECT = USE_YOLO;
 
+  // Frames whose perceptual hashes differ in at most this many of 64 bits reuse results cached
+  // within the last CACHE_MAX_AGE_MS instead of running the model again.
+  private static final int CACHE_MAX_DISTANCE = 3;
+  private static final long CACHE_MAX_AGE_MS = 2000;
+  private static final int CACHE_CAPACITY = 8;
+
+  // Idle debug bitmaps kept for reuse; a few crops' worth.
+  private static final long BITMAP_POOL_BYTES = 2 * 1024 * 1024;
+
   private static final boolean SAVE_PREVIEW_BITMAP = false;
   private static final float TEXT_SIZE_DIP = 10;
 
+  // Detection only runs when at least MOTION_THRESHOLD of the MOTION_BLOCK_SIZE blocks of the
+  // luminance plane changed by a mean absolute difference of more than MOTION_BLOCK_THRESHOLD
+  // levels since the last detection, or when MOTION_MAX_STALENESS_MS has passed without one. The
+  // tracker still follows every frame in between.
+  private static final int MOTION_BLOCK_SIZE = 32;
+  private static final int MOTION_MAX_SAMPLES = 16384;
+  private static final float MOTION_BLOCK_THRESHOLD = 6.0f;
+  private static final float MOTION_THRESHOLD = 0.02f;
+  private static final long MOTION_MAX_STALENESS_MS = 1000;
+
   private Integer sensorOrientation;
 
-  private Classifier detector;
+  // Inferences run on a synthetic input while loading, so the first real frame runs at full speed.
+  private static final int WARM_UP_RUNS = 1;
+
+  private ClassifierLoader detectorLoader;
+  // Null until the loader reports the model ready. This and pipeline are replaced on the thread
+  // that chooses the preview size while the camera and UI threads read them, so they are volatile
+  // and read once into a local wherever they are used more than once.
+  private volatile Classifier detector;
 
   private int previewWidth = 0;
   private int previewHeight = 0;
   private byte[][] yuvBytes;
-  private int[] rgbBytes = null;
-  private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
-
-  private boolean computing = false;
 
   private long timestamp = 0;
 
   private Matrix frameToCropTransform;
   private Matrix cropToFrameTransform;
 
+  // The crop shown in the debug overlay. Only touched on the UI thread, which releases it once the
+  // next crop replaces it and so can no longer be drawing it.
   private Bitmap cropCopyBitmap;
+  // The newest crop, waiting for the UI thread to show it.
+  private final AtomicReference<Bitmap> pendingCropCopyBitmap = new AtomicReference<Bitmap>();
+  // Debug copies of the crop are recycled through here instead of allocated per frame.
+  private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+
+  private YuvFrameConverter yuvConverter;
+  private MotionGate motionGate;
+
+  // Preprocessing, inference, decoding and tracking each run on their own thread, so consecutive
+  // frames overlap; see FramePipeline. Started once the detector is ready.
+  private static final int NUM_FRAME_SLOTS = 3;
+  private volatile FramePipeline<DetectionFrame> pipeline;
 
   private MultiBoxTracker tracker;
 
-  private byte[] luminance;
+  private final RectF cropRect = new RectF();
 
   private BorderedText borderedText;
 
-  private long lastProcessingTimeMs;
+  private volatile long lastProcessingTimeMs;
 
   @Override
   public void onPreviewSizeChosen(final Size size, final int rotation) {
@@ -124,27 +169,61 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     tracker = new MultiBoxTracker(getResources().getDisplayMetrics());
 
-    if (USE_YOLO) {
-      detector =
-          TensorFlowYoloDetector.create(
-              getAssets(),
-              YOLO_MODEL_FILE,
-              YOLO_INPUT_SIZE,
-              YOLO_INPUT_NAME,
-              YOLO_OUTPUT_NAMES,
-              YOLO_BLOCK_SIZE);
-    } else {
-      detector =
-          TensorFlowMultiBoxDetector.create(
-              getAssets(),
-              MB_MODEL_FILE,
-              MB_LOCATION_FILE,
-              MB_IMAGE_MEAN,
-              MB_IMAGE_STD,
-              MB_INPUT_NAME,
-              MB_OUTPUT_LOCATIONS_NAME,
-              MB_OUTPUT_SCORES_NAME);
+    if (detectorLoader != null) {
+      // The model stays loaded in the registry, so this only drops our reference. The pipeline
+      // goes first, so no stage is still using the detector when it closes.
+      final FramePipeline<DetectionFrame> oldPipeline = pipeline;
+      pipeline = null;
+      if (oldPipeline != null) {
+        oldPipeline.close();
+      }
+      final Classifier oldDetector = detector;
+      detector = null;
+      if (oldDetector != null) {
+        oldDetector.close();
+      }
+      detectorLoader.close();
     }
+    final ClassifierPool.Factory factory =
+        new ClassifierPool.Factory() {
+          @Override
+          public Classifier create() {
+            if (USE_YOLO) {
+              return TensorFlowYoloDetector.create(
+                  getAssets(),
+                  YOLO_MODEL_FILE,
+                  YOLO_INPUT_SIZE,
+                  YOLO_INPUT_NAME,
+                  YOLO_OUTPUT_NAMES,
+                  YOLO_BLOCK_SIZE);
+            }
+            return TensorFlowMultiBoxDetector.create(
+                getAssets(),
+                MB_MODEL_FILE,
+                MB_LOCATION_FILE,
+                MB_IMAGE_MEAN,
+                MB_IMAGE_STD,
+                MB_INPUT_NAME,
+                MB_OUTPUT_LOCATIONS_NAME,
+                MB_OUTPUT_SCORES_NAME,
+                MB_MAX_RESULTS,
+                MINIMUM_CONFIDENCE,
+                getCacheDir());
+          }
+        };
+    // Load off the camera callback path, or reuse the model if another activity left it loaded;
+    // the tracker keeps running until it is ready.
+    detectorLoader =
+        ClassifierLoader.start(
+            new ClassifierPool.Factory() {
+              @Override
+              public Classifier create() {
+                return ModelRegistry.getInstance()
+                    .acquireClassifier(USE_YOLO ? YOLO_MODEL_FILE : MB_MODEL_FILE, factory);
+              }
+            },
+            CROP_SIZE,
+            WARM_UP_RUNS);
 
     previewWidth = size.getWidth();
     previewHeight = size.getHeight();
@@ -157,9 +236,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     sensorOrientation = rotation + screenOrientation;
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbBytes = new int[previewWidth * previewHeight];
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-    croppedBitmap = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
 
     frameToCropTransform =
         ImageUtils.getTransformationMatrix(
@@ -169,6 +245,32 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     cropToFrameTransform = new Matrix();
     frameToCropTransform.invert(cropToFrameTransform);
+
+    final FrameResampler frameResampler =
+        new FrameResampler(
+            previewWidth, previewHeight,
+            CROP_SIZE, CROP_SIZE,
+            sensorOrientation, MAINTAIN_ASPECT,
+            FrameResampler.Mode.NEAREST);
+
+    motionGate =
+        new MotionGate(
+            previewWidth,
+            previewHeight,
+            MOTION_BLOCK_SIZE,
+            MOTION_MAX_SAMPLES,
+            MOTION_BLOCK_THRESHOLD,
+            MOTION_THRESHOLD,
+            MOTION_MAX_STALENESS_MS);
+
+    yuvConverter =
+        new YuvFrameConverter(
+            frameResampler,
+            new Preprocessor(
+                USE_YOLO
+                    ? TensorFlowYoloDetector.PREPROCESSOR_SPEC
+                    : Preprocessor.Spec.uniform(ChannelOrder.BGR, MB_IMAGE_MEAN, MB_IMAGE_STD)));
+
     yuvBytes = new byte[3][];
 
     trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
@@ -187,6 +289,12 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         new DrawCallback() {
           @Override
           public void drawCallback(final Canvas canvas) {
+            // Draws run one at a time on this thread, so the crop being replaced is done with.
+            final Bitmap newCopy = pendingCropCopyBitmap.getAndSet(null);
+            if (newCopy != null) {
+              bitmapPool.release(cropCopyBitmap);
+              cropCopyBitmap = newCopy;
+            }
             if (!isDebug()) {
               return;
             }
@@ -207,8 +315,9 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             canvas.drawBitmap(copy, matrix, new Paint());
 
             final Vector<String> lines = new Vector<String>();
-            if (detector != null) {
-              final String statString = detector.getStatString();
+            final Classifier currentDetector = detector;
+            if (currentDetector != null) {
+              final String statString = currentDetector.getStatString();
               final String[] statLines = statString.split("\n");
               for (final String line : statLines) {
                 lines.add(line);
@@ -221,6 +330,17 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
             lines.add("View: " + canvas.getWidth() + "x" + canvas.getHeight());
             lines.add("Rotation: " + sensorOrientation);
             lines.add("Inference time: " + lastProcessingTimeMs + "ms");
+            lines.add("Model ready in: " + detectorLoader.getTimeToReadyMs() + "ms");
+            final FramePipeline<DetectionFrame> currentPipeline = pipeline;
+            if (currentPipeline != null) {
+              lines.add("Pipeline: " + currentPipeline.getStatString());
+            }
+            lines.add(
+                String.format(
+                    "Motion: %.2f, skipped %.0f%% of frames",
+                    motionGate.getLastMotion(), 100 * motionGate.getSkippedFraction()));
+            lines.add("Detection interval: " + tracker.getDetectionIntervalMs() + "ms");
+            lines.add(bitmapPool.getStatString());
 
             borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, lines);
           }
@@ -232,6 +352,8 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   @Override
   public void onImageAvailable(final ImageReader reader) {
     Image image = null;
+    FramePipeline<DetectionFrame> currentPipeline = null;
+    DetectionFrame frame = null;
 
     ++timestamp;
     final long currTimestamp = timestamp;
@@ -257,90 +379,208 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
           timestamp);
       trackingOverlay.postInvalidate();
 
-      // No mutex needed as this method is not reentrant.
-      if (computing) {
+      if (detector == null && !takeReadyDetector()) {
         image.close();
+        Trace.endSection();
         return;
       }
-      computing = true;
-
-      final int yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
-      ImageUtils.convertYUV420ToARGB8888(
-          yuvBytes[0],
-          yuvBytes[1],
-          yuvBytes[2],
-          rgbBytes,
-          previewWidth,
-          previewHeight,
-          yRowStride,
-          uvRowStride,
-          uvPixelStride,
-          false);
+      // With every slot in flight the pipeline is saturated, and this frame is only tracked. The
+      // pipeline is null while the preview size changes.
+      currentPipeline = pipeline;
+      frame = currentPipeline != null ? currentPipeline.obtain() : null;
+      if (frame == null) {
+        image.close();
+        Trace.endSection();
+        return;
+      }
+      // Detect only when the tracker is losing its objects, or has none, and the scene changed.
+      final long nowMs = SystemClock.uptimeMillis();
+      if (!tracker.shouldDetect(nowMs)
+          || !motionGate.shouldRun(yuvBytes[0], planes[0].getRowStride(), nowMs)) {
+        currentPipeline.recycle(frame);
+        image.close();
+        Trace.endSection();
+        return;
+      }
+      // Counted from now rather than when the results arrive, so the frames that follow while this
+      // one is in the pipeline are not all detected too.
+      tracker.onDetectionStarted(nowMs);
+
+      // The planes are copied, as yuvBytes is refilled by the next frame while this one is still
+      // in the pipeline.
+      for (int i = 0; i < 3; ++i) {
+        if (frame.yuvBytes[i] == null || frame.yuvBytes[i].length != yuvBytes[i].length) {
+          frame.yuvBytes[i] = new byte[yuvBytes[i].length];
+        }
+        System.arraycopy(yuvBytes[i], 0, frame.yuvBytes[i], 0, yuvBytes[i].length);
+      }
+      frame.yRowStride = planes[0].getRowStride();
+      frame.uvRowStride = planes[1].getRowStride();
+      frame.uvPixelStride = planes[1].getPixelStride();
+      frame.timestamp = currTimestamp;
+      frame.renderCrop = SAVE_PREVIEW_BITMAP || isDebug();
 
       image.close();
     } catch (final Exception e) {
       if (image != null) {
         image.close();
       }
+      if (frame != null) {
+        currentPipeline.recycle(frame);
+      }
       LOGGER.e(e, "Exception!");
       Trace.endSection();
       return;
     }
 
-    rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+    currentPipeline.submit(frame);
 
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
+    Trace.endSection();
+  }
+
+  /** Converts the frame's YUV planes into model input, and into the ARGB crop if it is shown. */
+  private void preprocess(final DetectionFrame frame) {
+    final byte[][] planes = frame.yuvBytes;
+    if (frame.byteValues != null) {
+      yuvConverter.convert(
+          planes[0],
+          planes[1],
+          planes[2],
+          frame.yRowStride,
+          frame.uvRowStride,
+          frame.uvPixelStride,
+          frame.byteValues);
+    } else {
+      yuvConverter.convert(
+          planes[0],
+          planes[1],
+          planes[2],
+          frame.yRowStride,
+          frame.uvRowStride,
+          frame.uvPixelStride,
+          frame.floatValues);
     }
 
-    if (luminance == null) {
-      luminance = new byte[yuvBytes[0].length];
+    // The model input is produced directly from the YUV planes above; the ARGB crop is only
+    // needed to show or save what the model sees, and converts just the pixels it samples.
+    if (frame.renderCrop) {
+      yuvConverter.convertToArgb(
+          planes[0],
+          planes[1],
+          planes[2],
+          frame.yRowStride,
+          frame.uvRowStride,
+          frame.uvPixelStride,
+          frame.croppedPixels);
     }
-    System.arraycopy(yuvBytes[0], 0, luminance, 0, luminance.length);
+  }
 
-    runInBackground(
-        new Runnable() {
-          @Override
-          public void run() {
-            final long startTime = SystemClock.uptimeMillis();
-            final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-            cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-            final Canvas canvas = new Canvas(cropCopyBitmap);
-            final Paint paint = new Paint();
-            paint.setColor(Color.RED);
-            paint.setStyle(Style.STROKE);
-            paint.setStrokeWidth(2.0f);
-
-            final List<Classifier.Recognition> mappedRecognitions =
-                new LinkedList<Classifier.Recognition>();
-
-            for (final Classifier.Recognition result : results) {
-              final RectF location = result.getLocation();
-              if (location != null && result.getConfidence() >= MINIMUM_CONFIDENCE) {
-                canvas.drawRect(location, paint);
-
-                cropToFrameTransform.mapRect(location);
-                result.setLocation(location);
-                mappedRecognitions.add(result);
-              }
-            }
+  private void detect(final Classifier detector, final DetectionFrame frame) {
+    final long startTime = SystemClock.uptimeMillis();
+    if (frame.byteValues != null) {
+      detector.recognizeImage(frame.byteValues, frame.detections);
+    } else {
+      detector.recognizeImage(frame.floatValues, frame.detections);
+    }
+    lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+  }
 
-            tracker.trackResults(mappedRecognitions, luminance, currTimestamp);
-            trackingOverlay.postInvalidate();
+  /** Filters the detections and maps them from crop to frame coordinates. */
+  private void decode(final DetectionFrame frame) {
+    final Classifier.DetectionBatch detections = frame.detections;
+    // Results are filtered and mapped in place, without per-result allocation.
+    detections.retainAtLeast(MINIMUM_CONFIDENCE);
 
-            requestRender();
-            computing = false;
-          }
-        });
+    if (frame.renderCrop) {
+      final Bitmap copy = bitmapPool.acquireBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
+      copy.setPixels(frame.croppedPixels, 0, CROP_SIZE, 0, 0, CROP_SIZE, CROP_SIZE);
 
-    Trace.endSection();
+      // For examining the actual TF input.
+      if (SAVE_PREVIEW_BITMAP) {
+        ImageUtils.saveBitmap(copy);
+      }
+
+      final Canvas canvas = new Canvas(copy);
+      final Paint paint = new Paint();
+      paint.setColor(Color.RED);
+      paint.setStyle(Style.STROKE);
+      paint.setStrokeWidth(2.0f);
+      for (int i = 0; i < detections.size(); ++i) {
+        if (detections.hasLocation(i)) {
+          canvas.drawRect(detections.getLocation(i, cropRect), paint);
+        }
+      }
+      showCropCopy(copy);
+    }
+
+    detections.mapLocations(cropToFrameTransform);
+  }
+
+  /**
+   * Hands copy to the UI thread for the debug overlay. A copy still waiting was never drawn, so it
+   * goes straight back to the pool; the one on screen is released by the UI thread.
+   */
+  private void showCropCopy(final Bitmap copy) {
+    bitmapPool.release(pendingCropCopyBitmap.getAndSet(copy));
+  }
+
+  private void track(final DetectionFrame frame) {
+    tracker.trackResults(frame.detections, frame.yuvBytes[0], frame.timestamp);
+    trackingOverlay.postInvalidate();
+    requestRender();
+  }
+
+  /**
+   * Builds and starts the pipeline for detector. Frames may be dropped on their way to inference,
+   * but never after it, so no detection is computed only to be thrown away.
+   */
+  private FramePipeline<DetectionFrame> startPipeline(final Classifier detector) {
+    final List<DetectionFrame> slots = new ArrayList<DetectionFrame>(NUM_FRAME_SLOTS);
+    for (int i = 0; i < NUM_FRAME_SLOTS; ++i) {
+      slots.add(new DetectionFrame(detector.hasUint8Input()));
+    }
+    final FramePipeline<DetectionFrame> newPipeline =
+        new FramePipeline<DetectionFrame>(slots)
+            .addStage(
+                "preprocess",
+                new FramePipeline.Stage<DetectionFrame>() {
+                  @Override
+                  public boolean process(final DetectionFrame frame) {
+                    preprocess(frame);
+                    return true;
+                  }
+                })
+            .addStage(
+                "inference",
+                new FramePipeline.Stage<DetectionFrame>() {
+                  @Override
+                  public boolean process(final DetectionFrame frame) {
+                    detect(detector, frame);
+                    return true;
+                  }
+                })
+            .addStage(
+                "decode",
+                new FramePipeline.Stage<DetectionFrame>() {
+                  @Override
+                  public boolean process(final DetectionFrame frame) {
+                    decode(frame);
+                    return true;
+                  }
+                },
+                FramePipeline.Policy.KEEP_ALL)
+            .addStage(
+                "track",
+                new FramePipeline.Stage<DetectionFrame>() {
+                  @Override
+                  public boolean process(final DetectionFrame frame) {
+                    track(frame);
+                    return true;
+                  }
+                },
+                FramePipeline.Policy.KEEP_ALL);
+    newPipeline.start();
+    return newPipeline;
   }
 
   @Override
@@ -353,8 +593,67 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     return CROP_SIZE;
   }
 
+  /** Takes over the detector once it has loaded, returning false while it is still loading. */
+  private boolean takeReadyDetector() {
+    final Classifier loaded = detectorLoader.getIfReady();
+    if (loaded == null) {
+      return false;
+    }
+    LOGGER.i("Detector ready %d ms after loading started", detectorLoader.getTimeToReadyMs());
+    loaded.enableStatLogging(isDebug());
+    // Wrapped only now, so the warm-up inputs are never cached.
+    final Classifier cachingDetector =
+        new CachingClassifier(
+            loaded, CROP_SIZE, CACHE_MAX_DISTANCE, CACHE_MAX_AGE_MS, CACHE_CAPACITY);
+    // Publish the pipeline first, so a reader that sees the detector also sees its pipeline.
+    pipeline = startPipeline(cachingDetector);
+    detector = cachingDetector;
+    return true;
+  }
+
+  @Override
+  public synchronized void onDestroy() {
+    // Waits for the frames in flight, then releases the shared model.
+    final FramePipeline<DetectionFrame> currentPipeline = pipeline;
+    if (currentPipeline != null) {
+      currentPipeline.close();
+    }
+    final Classifier currentDetector = detector;
+    if (currentDetector != null) {
+      currentDetector.close();
+    }
+    if (detectorLoader != null) {
+      detectorLoader.close();
+    }
+    super.onDestroy();
+  }
+
   @Override
   public void onSetDebug(final boolean debug) {
-    detector.enableStatLogging(debug);
+    final Classifier currentDetector = detector;
+    if (currentDetector != null) {
+      currentDetector.enableStatLogging(debug);
+    }
+  }
+
+  /** One slot of the detection pipeline: a camera frame and everything derived from it. */
+  private static final class DetectionFrame {
+    final byte[][] yuvBytes = new byte[3][];
+    int yRowStride;
+    int uvRowStride;
+    int uvPixelStride;
+    long timestamp;
+    boolean renderCrop;
+
+    // Exactly one of these is allocated, matching the model's input type.
+    final float[] floatValues;
+    final byte[] byteValues;
+    final int[] croppedPixels = new int[CROP_SIZE * CROP_SIZE];
+    final Classifier.DetectionBatch detections = new Classifier.DetectionBatch(16);
+
+    DetectionFrame(final boolean uint8Input) {
+      floatValues = uint8Input ? null : new float[CROP_SIZE * CROP_SIZE * 3];
+      byteValues = uint8Input ? new byte[CROP_SIZE * CROP_SIZE * 3] : null;
+    }
   }
 }
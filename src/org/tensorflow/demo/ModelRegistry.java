@@ -0,0 +1,376 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.demo.env.Logger;
+
+/**
+ * Process-wide cache of loaded models, shared between activities through reference-counted
+ * handles.
+ *
+ * <p>Each model is loaded once per key. Acquiring a loaded model adds a reference; releasing the
+ * last one leaves the model loaded but evictable. Whenever the approximate footprint of all loaded
+ * models exceeds the budget, unreferenced models are unloaded, least recently released first, so
+ * switching back and forth between activities does not reload their graphs. Referenced models are
+ * never unloaded, so the budget may be exceeded while they are in use.
+ *
+ * <p>The footprint of a model is the growth of the Java and native heaps while it loaded. Loads
+ * running at the same time inflate each other's figures, which only makes eviction earlier.
+ *
+ * <p>The registry itself is thread-safe, but it shares model instances as they are: a handle must
+ * not be used from two threads at once, which holds for activities that release their handles in
+ * onDestroy after their background thread has stopped.
+ */
+public class ModelRegistry {
+  private static final Logger LOGGER = new Logger();
+
+  // Enough for the largest demo graph plus one of the smaller ones.
+  private static final long DEFAULT_BUDGET_BYTES = 96L * 1024 * 1024;
+
+  private static ModelRegistry instance;
+
+  /** Loads and unloads one kind of model. */
+  public interface Loader<T> {
+    T load();
+
+    void unload(T model);
+  }
+
+  /** A reference to a shared model, held until {@link #release}. */
+  public static final class Handle<T> {
+    private final ModelRegistry registry;
+    private final Entry<T> entry;
+    private boolean released;
+
+    private Handle(final ModelRegistry registry, final Entry<T> entry) {
+      this.registry = registry;
+      this.entry = entry;
+    }
+
+    public T get() {
+      if (released) {
+        throw new IllegalStateException("Handle to " + entry.key + " already released.");
+      }
+      return entry.model;
+    }
+
+    /** Drops this reference. Further calls have no effect. */
+    public void release() {
+      synchronized (registry) {
+        if (released) {
+          return;
+        }
+        released = true;
+        registry.release(entry);
+      }
+    }
+  }
+
+  private static final class Entry<T> {
+    final String key;
+    final Loader<T> loader;
+    final FutureTask<T> loading;
+    T model;
+    int refCount;
+    long footprintBytes;
+
+    Entry(final String key, final Loader<T> loader) {
+      this.key = key;
+      this.loader = loader;
+      this.loading =
+          new FutureTask<T>(
+              new Callable<T>() {
+                @Override
+                public T call() {
+                  return loader.load();
+                }
+              });
+    }
+  }
+
+  // In access order, so iteration starts with the least recently used entry.
+  private final LinkedHashMap<String, Entry<?>> entries =
+      new LinkedHashMap<String, Entry<?>>(8, 0.75f, true);
+  private long budgetBytes;
+  private long totalBytes;
+
+  public static synchronized ModelRegistry getInstance() {
+    if (instance == null) {
+      instance = new ModelRegistry(DEFAULT_BUDGET_BYTES);
+    }
+    return instance;
+  }
+
+  public ModelRegistry(final long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  /** Sets the memory budget, unloading unreferenced models at once if it is now exceeded. */
+  public synchronized void setBudgetBytes(final long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    trim();
+  }
+
+  /** The approximate combined footprint of the loaded models. */
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public synchronized int getModelCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns a handle to the model under key, loading it with loader on the calling thread if it is
+   * not loaded. Callers asking for a key that is still loading wait for that load instead of
+   * starting another. The loader must produce the same model for the same key.
+   *
+   * @throws RuntimeException if loading failed; the next acquire tries again.
+   */
+  public <T> Handle<T> acquire(final String key, final Loader<T> loader) {
+    final Entry<T> entry;
+    final boolean isLoader;
+    synchronized (this) {
+      @SuppressWarnings("unchecked")
+      final Entry<T> existing = (Entry<T>) entries.get(key);
+      isLoader = existing == null;
+      entry = isLoader ? new Entry<T>(key, loader) : existing;
+      if (isLoader) {
+        entries.put(key, entry);
+      }
+      ++entry.refCount;
+    }
+
+    if (isLoader) {
+      final Runtime runtime = Runtime.getRuntime();
+      final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+      final long nativeBefore = Debug.getNativeHeapAllocatedSize();
+      entry.loading.run();
+      final long footprint =
+          Math.max(0, runtime.totalMemory() - runtime.freeMemory() - heapBefore)
+              + Math.max(0, Debug.getNativeHeapAllocatedSize() - nativeBefore);
+      synchronized (this) {
+        entry.footprintBytes = footprint;
+        totalBytes += footprint;
+      }
+    }
+
+    final T model;
+    try {
+      model = entry.loading.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      synchronized (this) {
+        release(entry);
+      }
+      throw new RuntimeException("Interrupted while loading " + key, e);
+    } catch (final ExecutionException e) {
+      synchronized (this) {
+        // Forget the failed entry so the next acquire tries again.
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+          totalBytes -= entry.footprintBytes;
+        }
+      }
+      throw new RuntimeException("Failed to load " + key, e.getCause());
+    }
+
+    synchronized (this) {
+      entry.model = model;
+      if (isLoader) {
+        LOGGER.i("Loaded %s, about %d KB", key, entry.footprintBytes / 1024);
+        trim();
+      }
+    }
+    return new Handle<T>(this, entry);
+  }
+
+  /**
+   * Returns a classifier backed by the shared model under key, creating it with factory if it is
+   * not loaded. Closing the returned classifier releases the reference instead of the model.
+   */
+  public Classifier acquireClassifier(final String key, final ClassifierPool.Factory factory) {
+    return new SharedClassifier(
+        acquire(
+            key,
+            new Loader<Classifier>() {
+              @Override
+              public Classifier load() {
+                return factory.create();
+              }
+
+              @Override
+              public void unload(final Classifier model) {
+                model.close();
+              }
+            }));
+  }
+
+  /**
+   * Returns a handle to the graph in modelFilename, loading it if no one else has. Graphs are keyed
+   * apart from classifiers, so a classifier may use the same file as its key.
+   */
+  public Handle<TensorFlowInferenceInterface> acquireGraph(
+      final AssetManager assetManager, final String modelFilename) {
+    return acquire(
+        "graph:" + modelFilename,
+        new Loader<TensorFlowInferenceInterface>() {
+          @Override
+          public TensorFlowInferenceInterface load() {
+            return new TensorFlowInferenceInterface(assetManager, modelFilename);
+          }
+
+          @Override
+          public void unload(final TensorFlowInferenceInterface model) {
+            model.close();
+          }
+        });
+  }
+
+  /** Unloads every unreferenced model, e.g. in response to onTrimMemory. */
+  public synchronized void evictUnused() {
+    final long budget = budgetBytes;
+    budgetBytes = 0;
+    trim();
+    budgetBytes = budget;
+  }
+
+  private void release(final Entry<?> entry) {
+    --entry.refCount;
+    trim();
+  }
+
+  /** Unloads unreferenced, fully loaded models, least recently used first, until within budget. */
+  private void trim() {
+    if (totalBytes <= budgetBytes) {
+      return;
+    }
+    final List<Entry<?>> evicted = new ArrayList<Entry<?>>();
+    final Iterator<Entry<?>> it = entries.values().iterator();
+    while (it.hasNext() && totalBytes > budgetBytes) {
+      final Entry<?> entry = it.next();
+      if (entry.refCount == 0 && entry.model != null) {
+        it.remove();
+        totalBytes -= entry.footprintBytes;
+        evicted.add(entry);
+      }
+    }
+    for (final Entry<?> entry : evicted) {
+      LOGGER.i("Evicting %s, about %d KB", entry.key, entry.footprintBytes / 1024);
+      unload(entry);
+    }
+  }
+
+  private static <T> void unload(final Entry<T> entry) {
+    entry.loader.unload(entry.model);
+    entry.model = null;
+  }
+
+  /** Forwards to a shared classifier, releasing its reference on close. */
+  private static class SharedClassifier implements Classifier {
+    private final Handle<Classifier> handle;
+    private final Classifier delegate;
+
+    SharedClassifier(final Handle<Classifier> handle) {
+      this.handle = handle;
+      this.delegate = handle.get();
+    }
+
+    @Override
+    public List<Recognition> recognizeImage(final Bitmap bitmap) {
+      return delegate.recognizeImage(bitmap);
+    }
+
+    @Override
+    public List<Recognition> recognizeImage(final float[] pixels) {
+      return delegate.recognizeImage(pixels);
+    }
+
+    @Override
+    public List<Recognition> recognizeImage(final byte[] pixels) {
+      return delegate.recognizeImage(pixels);
+    }
+
+    @Override
+    public void recognizeImage(final float[] pixels, final DetectionBatch results) {
+      delegate.recognizeImage(pixels, results);
+    }
+
+    @Override
+    public void recognizeImage(final byte[] pixels, final DetectionBatch results) {
+      delegate.recognizeImage(pixels, results);
+    }
+
+    @Override
+    public List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+      return delegate.recognizeImages(bitmaps);
+    }
+
+    @Override
+    public Future<List<Recognition>> recognizeImageAsync(
+        final float[] pixels, final Callback callback) {
+      return delegate.recognizeImageAsync(pixels, callback);
+    }
+
+    @Override
+    public Future<List<Recognition>> recognizeImageAsync(
+        final byte[] pixels, final Callback callback) {
+      return delegate.recognizeImageAsync(pixels, callback);
+    }
+
+    @Override
+    public void setQueuePolicy(final int capacity, final RecognitionQueue.Policy policy) {
+      delegate.setQueuePolicy(capacity, policy);
+    }
+
+    @Override
+    public int getQueueDepth() {
+      return delegate.getQueueDepth();
+    }
+
+    @Override
+    public boolean hasUint8Input() {
+      return delegate.hasUint8Input();
+    }
+
+    @Override
+    public void enableStatLogging(final boolean debug) {
+      delegate.enableStatLogging(debug);
+    }
+
+    @Override
+    public String getStatString() {
+      return delegate.getStatString();
+    }
+
+    @Override
+    public void close() {
+      handle.release();
+    }
+  }
+}
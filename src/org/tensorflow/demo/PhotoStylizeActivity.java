@@ -23,9 +23,13 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import org.tensorflow.DataType;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.demo.env.BitmapPool;
 import org.tensorflow.demo.env.ImageUtils;
 import org.tensorflow.demo.env.Logger;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.StripedConverter;
 import org.tensorflow.demo.util.BitmapUtil;
 import org.tensorflow.demo.util.FileUtil;
 import org.tensorflow.demo.util.MediaScanner;
@@ -55,6 +59,13 @@ public class PhotoStylizeActivity extends Activity {
 
     private static final boolean DEBUG_MODEL = false;
 
+    // Smallest number of rows per stripe when converting pixels on multiple cores. Sizes below
+    // twice this are converted on a single thread.
+    private static final int MIN_STRIPE_ROWS = 32;
+
+    // Recycles stylizeImage's pixel arrays and result bitmaps instead of allocating them each time.
+    private static final long BITMAP_POOL_BYTES = 16 * 1024 * 1024;
+
     private static final int[] SIZES = {32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024};
 
     // Start at a medium size, but let the user step up through smaller sizes so they don't get
@@ -64,12 +75,22 @@ public class PhotoStylizeActivity extends Activity {
 
     private final float[] styleVals = new float[NUM_STYLES];
 
+    private final Preprocessor preprocessor = new Preprocessor(
+            Preprocessor.Spec.uniform(Preprocessor.ChannelOrder.RGB, 0.0f, 255.0f));
+
+    private final StripedConverter stripedConverter = new StripedConverter(MIN_STRIPE_ROWS);
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+
     private int frameNum = 0;
 
     private Bitmap srcBitmap;
     private Bitmap dstBitmap;
 
+    private ModelRegistry.Handle<TensorFlowInferenceInterface> modelHandle;
     private TensorFlowInferenceInterface inferenceInterface;
+    // A quantized model's input or output may be uint8; raw bytes are then passed without floats.
+    private boolean uint8Input;
+    private boolean uint8Output;
 
     private int lastOtherStyle = 1;
 
@@ -82,6 +103,8 @@ public class PhotoStylizeActivity extends Activity {
     private View viewMask;
 
     private StylizeTask stylizeTask = new StylizeTask();
+    // Set in onDestroy; a stylize still running then releases the model when it ends.
+    private boolean destroyed = false;
 
 
     @Override
@@ -100,9 +123,23 @@ public class PhotoStylizeActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (stylizeTask.getStatus() != AsyncTask.Status.FINISHED) {
+        // Stop the converter's worker threads before anything else can fail.
+        stripedConverter.shutdown();
+        destroyed = true;
+        if (stylizeTask != null && stylizeTask.getStatus() == AsyncTask.Status.RUNNING) {
+            // Cancelling does not stop a stylize that has already started, and the registry may
+            // close the graph as soon as it is released, so onCancelled releases it instead.
             stylizeTask.cancel(true);
-            stylizeTask = null;
+        } else {
+            releaseModel();
+        }
+    }
+
+    private void releaseModel() {
+        if (modelHandle != null) {
+            modelHandle.release();
+            modelHandle = null;
+            inferenceInterface = null;
         }
     }
 
@@ -116,7 +153,13 @@ public class PhotoStylizeActivity extends Activity {
     }
 
     private void init() {
-        inferenceInterface = new TensorFlowInferenceInterface(getAssets(), MODEL_FILE);
+        // Shares the model StylizeActivity loads, if it is already loaded.
+        modelHandle = ModelRegistry.getInstance().acquireGraph(getAssets(), MODEL_FILE);
+        inferenceInterface = modelHandle.get();
+        uint8Input = inferenceInterface.graphOperation(INPUT_NODE).output(0).dataType()
+                == DataType.UINT8;
+        uint8Output = inferenceInterface.graphOperation(OUTPUT_NODE).output(0).dataType()
+                == DataType.UINT8;
         initListener();
         initStyleGrid();
     }
@@ -288,8 +331,11 @@ public class PhotoStylizeActivity extends Activity {
      */
     private Bitmap stylizeImage(final Bitmap bitmap) {
         desiredSize = bitmap.getWidth();
-        int[] intValues = new int[desiredSize * desiredSize];
-        float[] floatValues = new float[desiredSize * desiredSize * 3];
+        final int numPixels = bitmap.getWidth() * bitmap.getHeight();
+        final int[] intValues = bitmapPool.acquireInts(numPixels);
+        final float[] floatValues = bitmapPool.acquireFloats(numPixels * 3);
+        final byte[] byteValues =
+                uint8Input || uint8Output ? bitmapPool.acquireBytes(numPixels * 3) : null;
         ++frameNum;
         bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
@@ -306,35 +352,45 @@ public class PhotoStylizeActivity extends Activity {
                 floatValues[i * 3] = val;
                 floatValues[i * 3 + 1] = val;
                 floatValues[i * 3 + 2] = val;
+                if (uint8Input) {
+                    final byte raw = (byte) (val * 255);
+                    byteValues[i * 3] = raw;
+                    byteValues[i * 3 + 1] = raw;
+                    byteValues[i * 3 + 2] = raw;
+                }
             }
+        } else if (uint8Input) {
+            preprocessor.applyRaw(intValues, 0, intValues.length, byteValues, 0);
         } else {
-            for (int i = 0; i < intValues.length; ++i) {
-                final int val = intValues[i];
-                floatValues[i * 3] = ((val >> 16) & 0xFF) / 255.0f;
-                floatValues[i * 3 + 1] = ((val >> 8) & 0xFF) / 255.0f;
-                floatValues[i * 3 + 2] = (val & 0xFF) / 255.0f;
-            }
+            stripedConverter.argbToFloat(
+                    intValues, bitmap.getWidth(), bitmap.getHeight(), preprocessor, floatValues);
         }
 
         // Copy the input data into TensorFlow.
-        inferenceInterface.feed(
-                INPUT_NODE, floatValues, 1, bitmap.getWidth(), bitmap.getHeight(), 3);
+        if (uint8Input) {
+            inferenceInterface.feed(
+                    INPUT_NODE, byteValues, 1, bitmap.getWidth(), bitmap.getHeight(), 3);
+        } else {
+            inferenceInterface.feed(
+                    INPUT_NODE, floatValues, 1, bitmap.getWidth(), bitmap.getHeight(), 3);
+        }
         inferenceInterface.feed(STYLE_NODE, styleVals, NUM_STYLES);
 
         inferenceInterface.run(new String[] {OUTPUT_NODE}, false);
-        inferenceInterface.fetch(OUTPUT_NODE, floatValues);
-
-        for (int i = 0; i < intValues.length; ++i) {
-            intValues[i] =
-                    0xFF000000
-                            | (((int) (floatValues[i * 3] * 255)) << 16)
-                            | (((int) (floatValues[i * 3 + 1] * 255)) << 8)
-                            | ((int) (floatValues[i * 3 + 2] * 255));
+        if (uint8Output) {
+            inferenceInterface.fetch(OUTPUT_NODE, byteValues);
+            stripedConverter.bytesToArgb(byteValues, bitmap.getWidth(), bitmap.getHeight(), intValues);
+        } else {
+            inferenceInterface.fetch(OUTPUT_NODE, floatValues);
+            stripedConverter.floatToArgb(floatValues, bitmap.getWidth(), bitmap.getHeight(), intValues);
         }
 
-        //bitmap.setPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        Bitmap newBitmap = Bitmap.createBitmap(bitmap);
+        final Bitmap newBitmap = bitmapPool.acquireBitmap(
+                bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
         newBitmap.setPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        bitmapPool.release(intValues);
+        bitmapPool.release(floatValues);
+        bitmapPool.release(byteValues);
         return newBitmap;
     }
 
@@ -566,8 +622,23 @@ public class PhotoStylizeActivity extends Activity {
             super.onPostExecute(bitmap);
             progressBar.setVisibility(View.GONE);
             viewMask.setVisibility(View.GONE);
+            final Bitmap previous = dstBitmap;
             dstBitmap = bitmap;
             ivPhoto.setImageBitmap(dstBitmap);
+            // The old result is no longer shown, so it can be reused.
+            bitmapPool.release(previous);
+        }
+
+        @Override
+        protected void onCancelled(Bitmap bitmap) {
+            super.onCancelled(bitmap);
+            progressBar.setVisibility(View.GONE);
+            viewMask.setVisibility(View.GONE);
+            // The result of a cancelled stylize is never shown.
+            bitmapPool.release(bitmap);
+            if (destroyed) {
+                releaseModel();
+            }
         }
     }
 }
@@ -0,0 +1,66 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * The asynchronous half of {@link Classifier}, shared by the TensorFlow classifiers: requests go
+ * through a {@link RecognitionQueue} whose worker calls back into the synchronous methods.
+ *
+ * <p>Subclasses make every method that touches their session or buffers synchronized on this, so a
+ * synchronous call from another thread waits for the running request instead of racing it, and
+ * release the session in {@link #closeSession()}.
+ */
+public abstract class QueuedClassifier implements Classifier {
+  private final RecognitionQueue asyncQueue = new RecognitionQueue(this);
+
+  @Override
+  public Future<List<Recognition>> recognizeImageAsync(
+      final float[] pixels, final Callback callback) {
+    return asyncQueue.submit(pixels, callback);
+  }
+
+  @Override
+  public Future<List<Recognition>> recognizeImageAsync(
+      final byte[] pixels, final Callback callback) {
+    return asyncQueue.submit(pixels, callback);
+  }
+
+  @Override
+  public void setQueuePolicy(final int capacity, final RecognitionQueue.Policy policy) {
+    asyncQueue.setPolicy(capacity, policy);
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return asyncQueue.getDepth();
+  }
+
+  /** Cancels waiting requests, then releases the session once no call is using it. */
+  @Override
+  public void close() {
+    // Not synchronized: closing the queue waits for the running request, which needs the lock.
+    asyncQueue.close();
+    synchronized (this) {
+      closeSession();
+    }
+  }
+
+  /** Releases the session. Called once, with the lock held. */
+  protected abstract void closeSession();
+}
@@ -0,0 +1,286 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.tensorflow.demo.Classifier.Recognition;
+import org.tensorflow.demo.env.Logger;
+
+/**
+ * The bounded submission queue behind {@link Classifier#recognizeImageAsync}.
+ *
+ * <p>Requests run one at a time, in order, on a worker thread started with the first request. At
+ * most capacity requests wait behind the running one; what happens to a request that does not fit
+ * is decided by the {@link Policy}. A dropped request's future is cancelled and its callback never
+ * runs. Inputs are copied on submission into buffers recycled between requests, so callers may
+ * reuse their arrays immediately and steady-state submission does not allocate.
+ */
+public class RecognitionQueue {
+  private static final Logger LOGGER = new Logger();
+
+  /** What to do with a request when capacity requests are already waiting. */
+  public enum Policy {
+    /** Drop the new request. With capacity 1, this is the old skip-frames-while-busy behaviour. */
+    DROP_NEWEST,
+    /** Drop the longest-waiting request to make room for the new one. */
+    DROP_OLDEST,
+    /**
+     * Drop every waiting request on each submission, whether the queue is full or not, so only the
+     * newest waits. Suits camera frames, where an older frame is never worth analyzing.
+     */
+    KEEP_LATEST,
+    /** Block the submitting thread until there is room. */
+    BLOCK
+  }
+
+  private final class Request extends FutureTask<List<Recognition>> {
+    final float[] floatPixels;
+    final byte[] bytePixels;
+
+    Request(
+        final float[] floatPixels, final byte[] bytePixels, final Classifier.Callback callback) {
+      super(
+          new Callable<List<Recognition>>() {
+            @Override
+            public List<Recognition> call() {
+              final List<Recognition> results =
+                  floatPixels != null
+                      ? classifier.recognizeImage(floatPixels)
+                      : classifier.recognizeImage(bytePixels);
+              if (callback != null) {
+                callback.onResults(results);
+              }
+              return results;
+            }
+          });
+      this.floatPixels = floatPixels;
+      this.bytePixels = bytePixels;
+    }
+  }
+
+  private final Classifier classifier;
+
+  // Everything below is guarded by this.
+  private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+  private final ArrayDeque<float[]> freeFloats = new ArrayDeque<float[]>();
+  private final ArrayDeque<byte[]> freeBytes = new ArrayDeque<byte[]>();
+  private int capacity;
+  private Policy policy;
+  private Thread worker;
+  private boolean running;
+  private boolean closed;
+  private int numDropped;
+
+  /** Creates a queue of one request that drops new requests while busy. */
+  public RecognitionQueue(final Classifier classifier) {
+    this(classifier, 1, Policy.DROP_NEWEST);
+  }
+
+  public RecognitionQueue(final Classifier classifier, final int capacity, final Policy policy) {
+    this.classifier = classifier;
+    setPolicy(capacity, policy);
+  }
+
+  /** Changes the capacity and policy; requests already waiting keep their places. */
+  public synchronized void setPolicy(final int capacity, final Policy policy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.policy = policy;
+    notifyAll();
+  }
+
+  /** Queues recognition of a copy of pixels; see {@link Classifier#recognizeImageAsync}. */
+  public Future<List<Recognition>> submit(
+      final float[] pixels, final Classifier.Callback callback) {
+    return submit(pixels, null, callback);
+  }
+
+  /** Queues recognition of a copy of pixels; see {@link Classifier#recognizeImageAsync}. */
+  public Future<List<Recognition>> submit(final byte[] pixels, final Classifier.Callback callback) {
+    return submit(null, pixels, callback);
+  }
+
+  /** The number of requests waiting or running. */
+  public synchronized int getDepth() {
+    return waiting.size() + (running ? 1 : 0);
+  }
+
+  /** The number of requests dropped by the policy so far. */
+  public synchronized int getDroppedCount() {
+    return numDropped;
+  }
+
+  /**
+   * Cancels the waiting requests, waits for the running one to finish, and stops the worker.
+   * Further submissions throw.
+   */
+  public synchronized void close() {
+    closed = true;
+    dropWaiting(false);
+    notifyAll();
+    if (Thread.currentThread() == worker) {
+      return;
+    }
+    while (running) {
+      try {
+        wait();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private synchronized Future<List<Recognition>> submit(
+      final float[] floatPixels, final byte[] bytePixels, final Classifier.Callback callback) {
+    if (closed) {
+      throw new IllegalStateException("Queue closed.");
+    }
+    switch (policy) {
+      case DROP_NEWEST:
+        if (waiting.size() >= capacity) {
+          ++numDropped;
+          final Request dropped = new Request(null, null, callback);
+          dropped.cancel(false);
+          return dropped;
+        }
+        break;
+      case DROP_OLDEST:
+        if (waiting.size() >= capacity) {
+          drop(waiting.poll(), true);
+        }
+        break;
+      case KEEP_LATEST:
+        dropWaiting(true);
+        break;
+      case BLOCK:
+        while (waiting.size() >= capacity && !closed) {
+          try {
+            wait();
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ++numDropped;
+            final Request dropped = new Request(null, null, callback);
+            dropped.cancel(false);
+            return dropped;
+          }
+        }
+        if (closed) {
+          throw new IllegalStateException("Queue closed.");
+        }
+        break;
+    }
+
+    final Request request;
+    if (floatPixels != null) {
+      float[] copy = freeFloats.poll();
+      if (copy == null || copy.length != floatPixels.length) {
+        copy = new float[floatPixels.length];
+      }
+      System.arraycopy(floatPixels, 0, copy, 0, floatPixels.length);
+      request = new Request(copy, null, callback);
+    } else {
+      byte[] copy = freeBytes.poll();
+      if (copy == null || copy.length != bytePixels.length) {
+        copy = new byte[bytePixels.length];
+      }
+      System.arraycopy(bytePixels, 0, copy, 0, bytePixels.length);
+      request = new Request(null, copy, callback);
+    }
+    waiting.add(request);
+    ensureWorker();
+    notifyAll();
+    return request;
+  }
+
+  private void ensureWorker() {
+    if (worker != null) {
+      return;
+    }
+    worker =
+        new Thread("RecognitionQueue") {
+          @Override
+          public void run() {
+            work();
+          }
+        };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private void work() {
+    while (true) {
+      final Request request;
+      synchronized (this) {
+        while (waiting.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+        request = waiting.poll();
+        running = true;
+        // Wakes a blocked submitter.
+        notifyAll();
+      }
+      try {
+        request.run();
+      } catch (final RuntimeException e) {
+        // FutureTask captures exceptions from the recognition itself; this is only a safeguard.
+        LOGGER.e(e, "Recognition failed");
+      } finally {
+        synchronized (this) {
+          running = false;
+          recycle(request);
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private void dropWaiting(final boolean countAsDropped) {
+    while (!waiting.isEmpty()) {
+      drop(waiting.poll(), countAsDropped);
+    }
+  }
+
+  private void drop(final Request request, final boolean countAsDropped) {
+    request.cancel(false);
+    recycle(request);
+    if (countAsDropped) {
+      ++numDropped;
+    }
+  }
+
+  private void recycle(final Request request) {
+    // One spare per waiting slot, plus the running request, covers a full queue.
+    if (request.floatPixels != null && freeFloats.size() <= capacity) {
+      freeFloats.add(request.floatPixels);
+    } else if (request.bytePixels != null && freeBytes.size() <= capacity) {
+      freeBytes.add(request.bytePixels);
+    }
+  }
+}
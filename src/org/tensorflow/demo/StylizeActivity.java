@@ -52,12 +52,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
+import org.tensorflow.DataType;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 import org.tensorflow.demo.OverlayView.DrawCallback;
+import org.tensorflow.demo.env.BitmapPool;
 import org.tensorflow.demo.env.BorderedText;
+import org.tensorflow.demo.env.FrameMailbox;
+import org.tensorflow.demo.env.FrameResampler;
 import org.tensorflow.demo.env.ImageUtils;
 import org.tensorflow.demo.env.Logger;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.Preprocessor.ChannelOrder;
+import org.tensorflow.demo.env.StripedConverter;
+import org.tensorflow.demo.env.YuvFrameConverter;
 import org.tensorflow.demo.R;
 
 /**
@@ -87,6 +97,13 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
 
   private static final boolean DEBUG_MODEL = false;
 
+  // Smallest number of rows per stripe when converting pixels on multiple cores. Sizes below twice
+  // this are converted on a single thread.
+  private static final int MIN_STRIPE_ROWS = 32;
+
+  // Idle bitmaps kept for reuse: a couple of textures and crop copies at the largest size.
+  private static final long BITMAP_POOL_BYTES = 16 * 1024 * 1024;
+
   private static final int[] SIZES = {32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024};
 
   // Start at a medium size, but let the user step up through smaller sizes so they don't get
@@ -100,20 +117,30 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
   private int previewWidth = 0;
   private int previewHeight = 0;
   private byte[][] yuvBytes;
-  private int[] rgbBytes = null;
-  private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
 
   private final float[] styleVals = new float[NUM_STYLES];
+  // Owned by the inference thread, and reallocated there when the frame size changes.
   private int[] intValues;
-  private float[] floatValues;
+  private boolean uint8Input;
+  private boolean uint8Output;
 
   private int frameNum = 0;
 
+  // The bitmaps on screen. Only touched on the UI thread, which releases each one once a newer one
+  // replaces it and so can no longer be drawing it.
   private Bitmap cropCopyBitmap;
   private Bitmap textureCopyBitmap;
+  // The newest bitmaps from the inference thread, waiting for the UI thread to show them.
+  private final AtomicReference<Bitmap> pendingCropCopyBitmap = new AtomicReference<Bitmap>();
+  private final AtomicReference<Bitmap> pendingTextureCopyBitmap = new AtomicReference<Bitmap>();
+  private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
 
-  private boolean computing = false;
+  // Converted frames go from the camera thread to the inference thread through the mailbox, which
+  // is replaced, along with its slots, when the size changes.
+  private volatile FrameMailbox<StylizeFrame> mailbox;
+
+  private YuvFrameConverter yuvConverter;
+  private final StripedConverter stripedConverter = new StripedConverter(MIN_STRIPE_ROWS);
 
   private Matrix frameToCropTransform;
   private Matrix cropToFrameTransform;
@@ -122,6 +149,7 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
 
   private long lastProcessingTimeMs;
 
+  private ModelRegistry.Handle<TensorFlowInferenceInterface> modelHandle;
   private TensorFlowInferenceInterface inferenceInterface;
 
   private int lastOtherStyle = 1;
@@ -185,6 +213,16 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
     super.onCreate(savedInstanceState);
   }
 
+  @Override
+  public synchronized void onDestroy() {
+    stripedConverter.shutdown();
+    if (modelHandle != null) {
+      modelHandle.release();
+      modelHandle = null;
+    }
+    super.onDestroy();
+  }
+
   @Override
   protected int getLayoutId() {
     return R.layout.camera_connection_fragment_stylize;
@@ -369,7 +407,15 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
     borderedText = new BorderedText(textSizePx);
     borderedText.setTypeface(Typeface.MONOSPACE);
 
-    inferenceInterface = new TensorFlowInferenceInterface(getAssets(), MODEL_FILE);
+    // Shared with PhotoStylizeActivity through the registry, so switching between them is free.
+    if (modelHandle != null) {
+      modelHandle.release();
+    }
+    modelHandle = ModelRegistry.getInstance().acquireGraph(getAssets(), MODEL_FILE);
+    inferenceInterface = modelHandle.get();
+    uint8Input = isUint8(INPUT_NODE);
+    uint8Output = isUint8(OUTPUT_NODE);
+    LOGGER.i("uint8 input: %b, uint8 output: %b", uint8Input, uint8Output);
 
     previewWidth = size.getWidth();
     previewHeight = size.getHeight();
@@ -466,18 +512,10 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
         return;
       }
 
-      if (computing) {
-        image.close();
-        return;
-      }
-
       if (desiredSize != initializedSize) {
         LOGGER.i(
             "Initializing at size preview size %dx%d, stylize size %d",
             previewWidth, previewHeight, desiredSize);
-        rgbBytes = new int[previewWidth * previewHeight];
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(desiredSize, desiredSize, Config.ARGB_8888);
 
         frameToCropTransform =
             ImageUtils.getTransformationMatrix(
@@ -488,77 +526,153 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
         cropToFrameTransform = new Matrix();
         frameToCropTransform.invert(cropToFrameTransform);
 
+        final FrameResampler frameResampler =
+            new FrameResampler(
+                previewWidth, previewHeight,
+                desiredSize, desiredSize,
+                sensorOrientation, true,
+                FrameResampler.Mode.NEAREST);
+
+        yuvConverter =
+            new YuvFrameConverter(
+                frameResampler,
+                new Preprocessor(Preprocessor.Spec.uniform(ChannelOrder.RGB, 0.0f, 255.0f)));
+
         yuvBytes = new byte[3][];
 
-        intValues = new int[desiredSize * desiredSize];
-        floatValues = new float[desiredSize * desiredSize * 3];
+        final List<StylizeFrame> slots = new ArrayList<StylizeFrame>(3);
+        for (int i = 0; i < 3; ++i) {
+          slots.add(new StylizeFrame(desiredSize, uint8Input || uint8Output));
+        }
+        mailbox = new FrameMailbox<StylizeFrame>(slots);
         initializedSize = desiredSize;
       }
 
-      computing = true;
-
       Trace.beginSection("imageAvailable");
 
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
 
+      // The back slot belongs to this thread until it is published, however long the inference
+      // thread takes with the frame before.
+      final FrameMailbox<StylizeFrame> box = mailbox;
+      final StylizeFrame frame = box.getBack();
+      frame.renderCrop = SAVE_PREVIEW_BITMAP || isDebug();
+
       final int yRowStride = planes[0].getRowStride();
       final int uvRowStride = planes[1].getRowStride();
       final int uvPixelStride = planes[1].getPixelStride();
-      ImageUtils.convertYUV420ToARGB8888(
-          yuvBytes[0],
-          yuvBytes[1],
-          yuvBytes[2],
-          rgbBytes,
-          previewWidth,
-          previewHeight,
-          yRowStride,
-          uvRowStride,
-          uvPixelStride,
-          false);
+      final byte[][] planeBytes = yuvBytes;
+      final float[] inputValues = frame.floatValues;
+      final byte[] rawInputValues = uint8Input ? frame.byteValues : null;
+      stripedConverter.run(
+          initializedSize,
+          new StripedConverter.RowTask() {
+            @Override
+            public void processRows(final int startRow, final int endRow) {
+              if (rawInputValues != null) {
+                yuvConverter.convertRows(
+                    planeBytes[0],
+                    planeBytes[1],
+                    planeBytes[2],
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    startRow,
+                    endRow,
+                    rawInputValues);
+              } else {
+                yuvConverter.convertRows(
+                    planeBytes[0],
+                    planeBytes[1],
+                    planeBytes[2],
+                    yRowStride,
+                    uvRowStride,
+                    uvPixelStride,
+                    startRow,
+                    endRow,
+                    inputValues);
+              }
+            }
+          });
+
+      // The model input is produced directly from the YUV planes above; the ARGB crop is only
+      // needed to show or save what the model sees, and converts just the pixels it samples.
+      if (frame.renderCrop) {
+        yuvConverter.convertToArgb(
+            yuvBytes[0],
+            yuvBytes[1],
+            yuvBytes[2],
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            frame.croppedPixels);
+      }
 
       image.close();
+
+      // Only a frame that found the mailbox empty needs a new wake-up; one that replaced a waiting
+      // frame is picked up by the wake-up already posted for it.
+      if (box.publish()) {
+        runInBackground(stylizeLatest);
+      }
     } catch (final Exception e) {
       if (image != null) {
         image.close();
       }
       LOGGER.e(e, "Exception!");
-      Trace.endSection();
-      return;
     }
 
-    rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
-    }
+    Trace.endSection();
+  }
 
-    runInBackground(
-        new Runnable() {
-          @Override
-          public void run() {
-            cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
+  /** Stylizes the freshest published frame, if there is one the inference thread has not seen. */
+  private final Runnable stylizeLatest =
+      new Runnable() {
+        @Override
+        public void run() {
+          final StylizeFrame frame = mailbox.take();
+          if (frame == null) {
+            return;
+          }
 
-            final long startTime = SystemClock.uptimeMillis();
-            stylizeImage(croppedBitmap);
-            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+          if (intValues == null || intValues.length != frame.size * frame.size) {
+            intValues = new int[frame.size * frame.size];
+          }
 
-            textureCopyBitmap = Bitmap.createBitmap(croppedBitmap);
+          if (frame.renderCrop) {
+            final Bitmap cropCopy =
+                bitmapPool.acquireBitmap(frame.size, frame.size, Config.ARGB_8888);
+            cropCopy.setPixels(frame.croppedPixels, 0, frame.size, 0, 0, frame.size, frame.size);
 
-            requestRender();
-            computing = false;
+            // For examining the actual TF input.
+            if (SAVE_PREVIEW_BITMAP) {
+              ImageUtils.saveBitmap(cropCopy);
+            }
+            // A copy still waiting was never drawn, so it can go straight back.
+            bitmapPool.release(pendingCropCopyBitmap.getAndSet(cropCopy));
           }
-        });
 
-    Trace.endSection();
-  }
+          // The output is written straight into the bitmap that is shown.
+          final Bitmap texture = bitmapPool.acquireBitmap(frame.size, frame.size, Config.ARGB_8888);
+          final long startTime = SystemClock.uptimeMillis();
+          stylizeImage(frame, texture);
+          lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
 
-  private void stylizeImage(final Bitmap bitmap) {
+          bitmapPool.release(pendingTextureCopyBitmap.getAndSet(texture));
+
+          requestRender();
+        }
+      };
+
+  /**
+   * Stylizes the frame already converted into floatValues (or byteValues, for uint8 input) and
+   * writes the result into the given bitmap. The frame's buffers are reused for the output.
+   */
+  private void stylizeImage(final StylizeFrame frame, final Bitmap bitmap) {
+    final float[] floatValues = frame.floatValues;
+    final byte[] byteValues = frame.byteValues;
     ++frameNum;
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
     if (DEBUG_MODEL) {
       // Create a white square that steps through a black background 1 pixel per frame.
@@ -570,39 +684,62 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
         final int y = i / bitmap.getHeight();
         final float val =
             Math.abs(x - centerX) < squareSize && Math.abs(y - centerY) < squareSize ? 1.0f : 0.0f;
-        floatValues[i * 3] = val;
-        floatValues[i * 3 + 1] = val;
-        floatValues[i * 3 + 2] = val;
-      }
-    } else {
-      for (int i = 0; i < intValues.length; ++i) {
-        final int val = intValues[i];
-        floatValues[i * 3] = ((val >> 16) & 0xFF) / 255.0f;
-        floatValues[i * 3 + 1] = ((val >> 8) & 0xFF) / 255.0f;
-        floatValues[i * 3 + 2] = (val & 0xFF) / 255.0f;
+        if (uint8Input) {
+          final byte raw = (byte) (val * 255);
+          byteValues[i * 3] = raw;
+          byteValues[i * 3 + 1] = raw;
+          byteValues[i * 3 + 2] = raw;
+        } else {
+          floatValues[i * 3] = val;
+          floatValues[i * 3 + 1] = val;
+          floatValues[i * 3 + 2] = val;
+        }
       }
     }
 
     // Copy the input data into TensorFlow.
-    inferenceInterface.feed(
-        INPUT_NODE, floatValues, 1, bitmap.getWidth(), bitmap.getHeight(), 3);
+    if (uint8Input) {
+      inferenceInterface.feed(
+          INPUT_NODE, byteValues, 1, bitmap.getWidth(), bitmap.getHeight(), 3);
+    } else {
+      inferenceInterface.feed(
+          INPUT_NODE, floatValues, 1, bitmap.getWidth(), bitmap.getHeight(), 3);
+    }
     inferenceInterface.feed(STYLE_NODE, styleVals, NUM_STYLES);
 
     inferenceInterface.run(new String[] {OUTPUT_NODE}, isDebug());
-    inferenceInterface.fetch(OUTPUT_NODE, floatValues);
-
-    for (int i = 0; i < intValues.length; ++i) {
-      intValues[i] =
-          0xFF000000
-              | (((int) (floatValues[i * 3] * 255)) << 16)
-              | (((int) (floatValues[i * 3 + 1] * 255)) << 8)
-              | ((int) (floatValues[i * 3 + 2] * 255));
+    if (uint8Output) {
+      inferenceInterface.fetch(OUTPUT_NODE, byteValues);
+      stripedConverter.bytesToArgb(byteValues, bitmap.getWidth(), bitmap.getHeight(), intValues);
+    } else {
+      inferenceInterface.fetch(OUTPUT_NODE, floatValues);
+      stripedConverter.floatToArgb(floatValues, bitmap.getWidth(), bitmap.getHeight(), intValues);
     }
 
     bitmap.setPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
   }
 
+  private boolean isUint8(final String nodeName) {
+    return inferenceInterface.graphOperation(nodeName).output(0).dataType() == DataType.UINT8;
+  }
+
+  /** Shows the bitmaps the inference thread has handed over since the last draw. */
+  private void takePendingBitmaps() {
+    // Draws run one at a time on the UI thread, so the bitmaps being replaced are done with.
+    final Bitmap newTexture = pendingTextureCopyBitmap.getAndSet(null);
+    if (newTexture != null) {
+      bitmapPool.release(textureCopyBitmap);
+      textureCopyBitmap = newTexture;
+    }
+    final Bitmap newCropCopy = pendingCropCopyBitmap.getAndSet(null);
+    if (newCropCopy != null) {
+      bitmapPool.release(cropCopyBitmap);
+      cropCopyBitmap = newCropCopy;
+    }
+  }
+
   private void renderDebug(final Canvas canvas) {
+    takePendingBitmaps();
     // TODO(andrewharp): move result display to its own View instead of using debug overlay.
     final Bitmap texture = textureCopyBitmap;
     if (texture != null) {
@@ -650,7 +787,25 @@ public class StylizeActivity extends CameraActivity implements OnImageAvailableL
     lines.add("Inference time: " + lastProcessingTimeMs + "ms");
     lines.add("Desired size: " + desiredSize);
     lines.add("Initialized size: " + initializedSize);
+    lines.add(bitmapPool.getStatString());
 
     borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, lines);
   }
+
+  /** One slot of the mailbox: a converted camera frame at a given stylize size. */
+  private static final class StylizeFrame {
+    final int size;
+    boolean renderCrop;
+    final float[] floatValues;
+    // Used instead of floatValues on the side of the graph that is quantized, if any.
+    final byte[] byteValues;
+    final int[] croppedPixels;
+
+    StylizeFrame(final int size, final boolean needsBytes) {
+      this.size = size;
+      floatValues = new float[size * size * 3];
+      byteValues = needsBytes ? new byte[size * size * 3] : null;
+      croppedPixels = new int[size * size];
+    }
+  }
 }
@@ -20,18 +20,24 @@ import android.graphics.Bitmap;
 import android.os.Trace;
 import android.util.Log;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Vector;
+import org.tensorflow.DataType;
 import org.tensorflow.Operation;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.demo.env.CachedAsset;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.Preprocessor.ChannelOrder;
+import org.tensorflow.demo.env.TopK;
 
 /** A classifier specialized to label images using TensorFlow. */
-public class TensorFlowImageClassifier implements Classifier {
+public class TensorFlowImageClassifier extends QueuedClassifier {
   static {
     System.loadLibrary("tensorflow_demo");
   }
@@ -42,18 +48,38 @@ public class TensorFlowImageClassifier implements Classifier {
   private static final int MAX_RESULTS = 3;
   private static final float THRESHOLD = 0.1f;
 
+  // Images fed per run by recognizeImages, unless the graph only takes one.
+  private static final int DEFAULT_MAX_BATCH_SIZE = 8;
+
+  // Quantized outputs are assumed to cover scores in [0, 1] unless told otherwise.
+  private static final float DEFAULT_OUTPUT_SCALE = 1.0f / 255.0f;
+  private static final int DEFAULT_OUTPUT_ZERO_POINT = 0;
+
   // Config values.
   private String inputName;
   private String outputName;
   private int inputSize;
-  private int imageMean;
-  private float imageStd;
+  private int numClasses;
+  private int maxBatchSize;
+  private Preprocessor preprocessor;
 
   // Pre-allocated buffers.
-  private Vector<String> labels = new Vector<String>();
-  private int[] intValues;
-  private float[] floatValues;
+  private String[] labels;
+  private final TopK topK = new TopK(MAX_RESULTS);
+  private final DetectionBatch batch = new DetectionBatch(MAX_RESULTS);
+  private IntBuffer pixelBuffer;
+  private FloatBuffer inputBuffer;
+  private ByteBuffer rawInputBuffer;
+  private BatchInput batchInput;
+  // Scores of one image, or [N, numClasses] once a batch has been run.
   private float[] outputs;
+  private byte[] rawOutputs;
+  // The score of each quantized output level.
+  private float[] outputLevels;
+
+  // Whether the graph's input and output tensors are uint8 rather than float.
+  private boolean uint8Input;
+  private boolean uint8Output;
   private String[] outputNames;
 
   private boolean logStats = false;
@@ -84,22 +110,93 @@ public class TensorFlowImageClassifier implements Classifier {
       float imageStd,
       String inputName,
       String outputName) {
+    return create(
+        assetManager,
+        modelFilename,
+        labelFilename,
+        inputSize,
+        imageMean,
+        imageStd,
+        inputName,
+        outputName,
+        null);
+  }
+
+  /**
+   * Like {@link #create(AssetManager, String, String, int, int, float, String, String)}, with a
+   * cache for the parsed labels.
+   *
+   * @param cacheDir Where the parsed labels are cached between runs, or null to always read the
+   *     label file.
+   */
+  public static Classifier create(
+      AssetManager assetManager,
+      String modelFilename,
+      String labelFilename,
+      int inputSize,
+      int imageMean,
+      float imageStd,
+      String inputName,
+      String outputName,
+      File cacheDir) {
+    return create(
+        assetManager,
+        modelFilename,
+        labelFilename,
+        inputSize,
+        imageMean,
+        imageStd,
+        inputName,
+        outputName,
+        cacheDir,
+        DEFAULT_OUTPUT_SCALE,
+        DEFAULT_OUTPUT_ZERO_POINT);
+  }
+
+  /**
+   * Like {@link #create(AssetManager, String, String, int, int, float, String, String, File)}, with
+   * the quantization of a uint8 output. A quantized level q stands for the score
+   * outputScale * (q - outputZeroPoint). A uint8 output tensor does not carry the range it was
+   * quantized over, so it has to be passed in; the other overloads assume [0, 1], i.e. a scale of
+   * 1 / 255 and a zero point of 0. Both are ignored for float outputs.
+   *
+   * @param outputScale The score difference between adjacent quantized levels, (max - min) / 255
+   *     for an output quantized over [min, max].
+   * @param outputZeroPoint The quantized level that stands for a score of 0.
+   */
+  public static Classifier create(
+      AssetManager assetManager,
+      String modelFilename,
+      String labelFilename,
+      int inputSize,
+      int imageMean,
+      float imageStd,
+      String inputName,
+      String outputName,
+      File cacheDir,
+      float outputScale,
+      int outputZeroPoint) {
     TensorFlowImageClassifier c = new TensorFlowImageClassifier();
     c.inputName = inputName;
     c.outputName = outputName;
 
-    // Read the label names into memory.
-    // TODO(andrewharp): make this handle non-assets.
-    String actualFilename = labelFilename.split("file:///android_asset/")[1];
-    Log.i(TAG, "Reading labels from: " + actualFilename);
-    BufferedReader br = null;
+    // Read the label names into memory, from the compiled cache when it is current.
+    Log.i(TAG, "Reading labels from: " + labelFilename);
     try {
-      br = new BufferedReader(new InputStreamReader(assetManager.open(actualFilename)));
-      String line;
-      while ((line = br.readLine()) != null) {
-        c.labels.add(line);
+      final CachedAsset labelFile = CachedAsset.open(assetManager, cacheDir, labelFilename);
+      c.labels = labelFile.readStrings();
+      if (c.labels == null) {
+        final List<String> labels = new ArrayList<String>();
+        final BufferedReader br =
+            new BufferedReader(new InputStreamReader(labelFile.openSource()));
+        String line;
+        while ((line = br.readLine()) != null) {
+          labels.add(line);
+        }
+        br.close();
+        c.labels = labels.toArray(new String[labels.size()]);
+        labelFile.writeStrings(c.labels);
       }
-      br.close();
     } catch (IOException e) {
       throw new RuntimeException("Problem reading label file!" , e);
     }
@@ -109,46 +206,191 @@ public class TensorFlowImageClassifier implements Classifier {
     // The shape of the output is [N, NUM_CLASSES], where N is the batch size.
     final Operation operation = c.inferenceInterface.graphOperation(outputName);
     final int numClasses = (int) operation.output(0).shape().size(1);
-    Log.i(TAG, "Read " + c.labels.size() + " labels, output layer size is " + numClasses);
+    Log.i(TAG, "Read " + c.labels.length + " labels, output layer size is " + numClasses);
+    c.numClasses = numClasses;
+
+    // Quantized graphs may take raw uint8 pixels and produce uint8 scores, in which case neither
+    // side needs to be expanded to floats in Java.
+    c.uint8Input =
+        c.inferenceInterface.graphOperation(inputName).output(0).dataType() == DataType.UINT8;
+    c.uint8Output = operation.output(0).dataType() == DataType.UINT8;
+    Log.i(TAG, "uint8 input: " + c.uint8Input + ", uint8 output: " + c.uint8Output);
+    c.maxBatchSize =
+        BatchInput.getBatchLimit(
+            c.inferenceInterface.graphOperation(inputName), DEFAULT_MAX_BATCH_SIZE);
 
     // Ideally, inputSize could have been retrieved from the shape of the input operation.  Alas,
     // the placeholder node for input in the graphdef typically used does not specify a shape, so it
     // must be passed in as a parameter.
     c.inputSize = inputSize;
-    c.imageMean = imageMean;
-    c.imageStd = imageStd;
+    c.preprocessor =
+        new Preprocessor(Preprocessor.Spec.uniform(ChannelOrder.RGB, imageMean, imageStd));
 
     // Pre-allocate buffers.
     c.outputNames = new String[] {outputName};
-    c.intValues = new int[inputSize * inputSize];
-    c.floatValues = new float[inputSize * inputSize * 3];
-    c.outputs = new float[numClasses];
+    c.pixelBuffer = Preprocessor.allocatePixelBuffer(inputSize * inputSize);
+    if (c.uint8Input) {
+      c.rawInputBuffer = Preprocessor.allocateRawInputBuffer(inputSize * inputSize);
+    } else {
+      c.inputBuffer = Preprocessor.allocateInputBuffer(inputSize * inputSize);
+    }
+    if (c.uint8Output) {
+      c.rawOutputs = new byte[numClasses];
+      c.outputLevels = new float[256];
+      for (int q = 0; q < c.outputLevels.length; ++q) {
+        c.outputLevels[q] = outputScale * (q - outputZeroPoint);
+      }
+    } else {
+      c.outputs = new float[numClasses];
+    }
 
     return c;
   }
 
+  /**
+   * Sets how many images {@link #recognizeImages} feeds per run. Batch buffers are allocated on
+   * first use for this size and kept.
+   */
+  public synchronized void setMaxBatchSize(final int maxBatchSize) {
+    this.maxBatchSize =
+        BatchInput.getBatchLimit(inferenceInterface.graphOperation(inputName), maxBatchSize);
+  }
+
   @Override
-  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+  public synchronized List<Recognition> recognizeImage(final Bitmap bitmap) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
     Trace.beginSection("preprocessBitmap");
     // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-    for (int i = 0; i < intValues.length; ++i) {
-      final int val = intValues[i];
-      floatValues[i * 3 + 0] = (((val >> 16) & 0xFF) - imageMean) / imageStd;
-      floatValues[i * 3 + 1] = (((val >> 8) & 0xFF) - imageMean) / imageStd;
-      floatValues[i * 3 + 2] = ((val & 0xFF) - imageMean) / imageStd;
+    // on the provided parameters. Pixels only pass through direct buffers, so
+    // feeding them to TensorFlow needs no extra copy through the Java heap.
+    pixelBuffer.rewind();
+    bitmap.copyPixelsToBuffer(pixelBuffer);
+    if (uint8Input) {
+      preprocessor.applyRawRgba(pixelBuffer, rawInputBuffer);
+    } else {
+      preprocessor.applyRgba(pixelBuffer, inputBuffer);
+    }
+    Trace.endSection();
+
+    // Copy the input data into TensorFlow. Feeding drains the buffer, so rewind it every time.
+    Trace.beginSection("feed");
+    if (uint8Input) {
+      rawInputBuffer.rewind();
+      inferenceInterface.feed(inputName, rawInputBuffer, 1, inputSize, inputSize, 3);
+    } else {
+      inputBuffer.rewind();
+      inferenceInterface.feed(inputName, inputBuffer, 1, inputSize, inputSize, 3);
+    }
+    Trace.endSection();
+
+    classify(batch);
+    final List<Recognition> recognitions = batch.toRecognitions();
+    Trace.endSection(); // "recognizeImage"
+    return recognitions;
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeImage(final float[] pixels) {
+    recognizeImage(pixels, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public synchronized void recognizeImage(final float[] pixels, final DetectionBatch results) {
+    if (uint8Input) {
+      throw new IllegalStateException("Graph takes uint8 input; use recognizeImage(byte[]).");
     }
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
+    // Copy the input data into TensorFlow.
+    Trace.beginSection("feed");
+    inferenceInterface.feed(inputName, pixels, 1, inputSize, inputSize, 3);
     Trace.endSection();
 
+    classify(results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeImage(final byte[] pixels) {
+    recognizeImage(pixels, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public synchronized void recognizeImage(final byte[] pixels, final DetectionBatch results) {
+    if (!uint8Input) {
+      throw new IllegalStateException("Graph takes float input; use recognizeImage(float[]).");
+    }
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
     // Copy the input data into TensorFlow.
     Trace.beginSection("feed");
-    inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
+    inferenceInterface.feed(inputName, pixels, 1, inputSize, inputSize, 3);
     Trace.endSection();
 
+    classify(results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public synchronized List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    final List<List<Recognition>> recognitions =
+        new ArrayList<List<Recognition>>(bitmaps.size());
+    for (int start = 0; start < bitmaps.size(); start += maxBatchSize) {
+      final int count = Math.min(maxBatchSize, bitmaps.size() - start);
+      // Log this method so that it can be analyzed with systrace.
+      Trace.beginSection("recognizeImages");
+      ensureBatchCapacity();
+
+      Trace.beginSection("preprocessBitmap");
+      for (int i = 0; i < count; ++i) {
+        batchInput.put(i, bitmaps.get(start + i), preprocessor);
+      }
+      Trace.endSection();
+
+      // Copy the input data into TensorFlow.
+      Trace.beginSection("feed");
+      batchInput.feed(inferenceInterface, inputName, count);
+      Trace.endSection();
+
+      runInference();
+      for (int i = 0; i < count; ++i) {
+        select(i, batch);
+        recognitions.add(batch.toRecognitions());
+      }
+      Trace.endSection(); // "recognizeImages"
+    }
+    return recognitions;
+  }
+
+  @Override
+  public boolean hasUint8Input() {
+    return uint8Input;
+  }
+
+  private void ensureBatchCapacity() {
+    if (batchInput != null && batchInput.getCapacity() == maxBatchSize) {
+      return;
+    }
+    batchInput = new BatchInput(maxBatchSize, inputSize, uint8Input);
+    if (uint8Output) {
+      rawOutputs = new byte[maxBatchSize * numClasses];
+    } else {
+      outputs = new float[maxBatchSize * numClasses];
+    }
+  }
+
+  private void classify(final DetectionBatch results) {
+    runInference();
+    select(0, results);
+  }
+
+  private void runInference() {
     // Run the inference call.
     Trace.beginSection("run");
     inferenceInterface.run(outputNames, logStats);
@@ -156,48 +398,54 @@ public class TensorFlowImageClassifier implements Classifier {
 
     // Copy the output Tensor back into the output array.
     Trace.beginSection("fetch");
-    inferenceInterface.fetch(outputName, outputs);
+    if (uint8Output) {
+      inferenceInterface.fetch(outputName, rawOutputs);
+    } else {
+      inferenceInterface.fetch(outputName, outputs);
+    }
     Trace.endSection();
+  }
 
-    // Find the best classifications.
-    PriorityQueue<Recognition> pq =
-        new PriorityQueue<Recognition>(
-            3,
-            new Comparator<Recognition>() {
-              @Override
-              public int compare(Recognition lhs, Recognition rhs) {
-                // Intentionally reversed to put high confidence at the head of the queue.
-                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-              }
-            });
-    for (int i = 0; i < outputs.length; ++i) {
-      if (outputs[i] > THRESHOLD) {
-        pq.add(
-            new Recognition(
-                "" + i, labels.size() > i ? labels.get(i) : "unknown", outputs[i], null));
+  /** Writes the best classifications of the given image of the last run into results. */
+  private void select(final int image, final DetectionBatch results) {
+    final int base = image * numClasses;
+    topK.clear();
+    if (uint8Output) {
+      for (int i = 0; i < numClasses; ++i) {
+        final float score = outputLevels[rawOutputs[base + i] & 0xFF];
+        if (score > THRESHOLD && score > topK.threshold()) {
+          topK.offer(i, score);
+        }
+      }
+    } else {
+      for (int i = 0; i < numClasses; ++i) {
+        final float score = outputs[base + i];
+        if (score > THRESHOLD && score > topK.threshold()) {
+          topK.offer(i, score);
+        }
       }
     }
-    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-    int recognitionsSize = Math.min(pq.size(), MAX_RESULTS);
-    for (int i = 0; i < recognitionsSize; ++i) {
-      recognitions.add(pq.poll());
+    final int numResults = topK.sort();
+
+    results.clear(labels);
+    for (int r = 0; r < numResults; ++r) {
+      final int i = topK.getIndex(r);
+      results.add(i, i, topK.getScore(r));
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
   }
 
   @Override
-  public void enableStatLogging(boolean logStats) {
+  public synchronized void enableStatLogging(boolean logStats) {
     this.logStats = logStats;
   }
 
   @Override
-  public String getStatString() {
+  public synchronized String getStatString() {
     return inferenceInterface.getStatString();
   }
 
   @Override
-  public void close() {
+  protected void closeSession() {
     inferenceInterface.close();
   }
 }
@@ -17,53 +17,87 @@ package org.tensorflow.demo;
 
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.os.Trace;
 import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.StringTokenizer;
+import org.tensorflow.DataType;
 import org.tensorflow.Graph;
 import org.tensorflow.Operation;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.demo.env.CachedAsset;
+import org.tensorflow.demo.env.FastMath;
 import org.tensorflow.demo.env.Logger;
+import org.tensorflow.demo.env.NonMaxSuppression;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.Preprocessor.ChannelOrder;
+import org.tensorflow.demo.env.TopK;
 
 /**
  * A detector for general purpose object detection as described in Scalable Object Detection using
  * Deep Neural Networks (https://arxiv.org/abs/1312.2249).
  */
-public class TensorFlowMultiBoxDetector implements Classifier {
+public class TensorFlowMultiBoxDetector extends QueuedClassifier {
   private static final Logger LOGGER = new Logger();
 
   static {
     System.loadLibrary("tensorflow_demo");
   }
 
-  // Only return this many results with at least this confidence.
-  private static final int MAX_RESULTS = Integer.MAX_VALUE;
+  // By default, consider this many of the best locations, and only those above this score.
+  private static final int DEFAULT_MAX_RESULTS = 100;
+  private static final float DEFAULT_MIN_SCORE = 0.0f;
+
+  // Images fed per run by recognizeImages, unless the graph only takes one.
+  private static final int DEFAULT_MAX_BATCH_SIZE = 4;
+
+  // Overlapping locations are suppressed class-agnostically before results are returned.
+  private static final float NMS_IOU_THRESHOLD = 0.5f;
+  private static final int NMS_GRID_SIZE = 10;
 
   // Config values.
   private String inputName;
   private int inputSize;
-  private int imageMean;
-  private float imageStd;
+  private int maxBatchSize;
+  private Preprocessor preprocessor;
 
   // Pre-allocated buffers.
-  private int[] intValues;
-  private float[] floatValues;
-  private float[] outputLocations;
-  private float[] outputScores;
+  private IntBuffer pixelBuffer;
+  private FloatBuffer inputBuffer;
+  private ByteBuffer rawInputBuffer;
+  private BatchInput batchInput;
+  // Encodings of one image, or of [N, ...] once a batch has been run.
+  private float[] outputLocationsEncoding;
+  private float[] outputScoresEncoding;
+
+  // Selection over raw score logits, and the decoded boxes and scores of the winners.
+  private TopK topK;
+  private float minScoreLogit;
+  private float[] candidateBoxes;
+  private float[] candidateScores;
   private String[] outputNames;
   private int numLocations;
+  private int[] keep;
+  private DetectionBatch batch;
+
+  private final NonMaxSuppression nms =
+      new NonMaxSuppression(
+          NonMaxSuppression.Method.HARD, NMS_IOU_THRESHOLD, 0.0f, 0.0f, true, NMS_GRID_SIZE);
+
+  // Whether the graph's input tensor is uint8 rather than float.
+  private boolean uint8Input;
 
   private boolean logStats = false;
 
+  private FastMath.Mode mathMode = FastMath.Mode.APPROXIMATE;
+
   private TensorFlowInferenceInterface inferenceInterface;
 
   private float[] boxPriors;
@@ -80,7 +114,7 @@ public class TensorFlowMultiBoxDetector implements Classifier {
    * @param inputName The label of the image input node.
    * @param outputName The label of the output node.
    */
-  public static Classifier create(
+  public static TensorFlowMultiBoxDetector create(
       final AssetManager assetManager,
       final String modelFilename,
       final String locationFilename,
@@ -89,6 +123,41 @@ public class TensorFlowMultiBoxDetector implements Classifier {
       final String inputName,
       final String outputLocationsName,
       final String outputScoresName) {
+    return create(
+        assetManager,
+        modelFilename,
+        locationFilename,
+        imageMean,
+        imageStd,
+        inputName,
+        outputLocationsName,
+        outputScoresName,
+        DEFAULT_MAX_RESULTS,
+        DEFAULT_MIN_SCORE,
+        null);
+  }
+
+  /**
+   * Like {@link #create(AssetManager, String, String, int, float, String, String, String)}, with
+   * an explicit selection policy and a cache for the parsed box priors.
+   *
+   * @param maxResults Only the best this many locations are decoded and returned.
+   * @param minScore Only locations scoring above this are decoded and returned.
+   * @param cacheDir Where the parsed box priors are cached between runs, or null to always parse
+   *     the location file.
+   */
+  public static TensorFlowMultiBoxDetector create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String locationFilename,
+      final int imageMean,
+      final float imageStd,
+      final String inputName,
+      final String outputLocationsName,
+      final String outputScoresName,
+      final int maxResults,
+      final float minScore,
+      final File cacheDir) {
     final TensorFlowMultiBoxDetector d = new TensorFlowMultiBoxDetector();
 
     d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
@@ -105,8 +174,12 @@ public class TensorFlowMultiBoxDetector implements Classifier {
       throw new RuntimeException("Failed to find input Node '" + inputName + "'");
     }
     d.inputSize = (int) inputOp.output(0).shape().size(1);
-    d.imageMean = imageMean;
-    d.imageStd = imageStd;
+    // Quantized graphs may take raw uint8 pixels, in which case they are not normalized in Java.
+    d.uint8Input = inputOp.output(0).dataType() == DataType.UINT8;
+    d.maxBatchSize = BatchInput.getBatchLimit(inputOp, DEFAULT_MAX_BATCH_SIZE);
+    // The multibox graph expects its input in BGR order.
+    d.preprocessor =
+        new Preprocessor(Preprocessor.Spec.uniform(ChannelOrder.BGR, imageMean, imageStd));
     // The outputScoresName node has a shape of [N, NumLocations], where N
     // is the batch size.
     final Operation outputOp = g.operation(outputScoresName);
@@ -118,40 +191,66 @@ public class TensorFlowMultiBoxDetector implements Classifier {
     d.boxPriors = new float[d.numLocations * 8];
 
     try {
-      d.loadCoderOptions(assetManager, locationFilename, d.boxPriors);
+      d.loadCoderOptions(assetManager, cacheDir, locationFilename, d.boxPriors);
     } catch (final IOException e) {
       throw new RuntimeException("Error initializing box priors from " + locationFilename);
     }
 
     // Pre-allocate buffers.
     d.outputNames = new String[] {outputLocationsName, outputScoresName};
-    d.intValues = new int[d.inputSize * d.inputSize];
-    d.floatValues = new float[d.inputSize * d.inputSize * 3];
-    d.outputScores = new float[d.numLocations];
-    d.outputLocations = new float[d.numLocations * 4];
+    d.pixelBuffer = Preprocessor.allocatePixelBuffer(d.inputSize * d.inputSize);
+    if (d.uint8Input) {
+      d.rawInputBuffer = Preprocessor.allocateRawInputBuffer(d.inputSize * d.inputSize);
+    } else {
+      d.inputBuffer = Preprocessor.allocateInputBuffer(d.inputSize * d.inputSize);
+    }
+    d.outputScoresEncoding = new float[d.numLocations];
+    d.outputLocationsEncoding = new float[d.numLocations * 4];
+
+    final int numCandidates = Math.min(d.numLocations, maxResults);
+    d.topK = new TopK(numCandidates);
+    d.minScoreLogit = FastMath.logit(minScore);
+    d.candidateBoxes = new float[numCandidates * 4];
+    d.candidateScores = new float[numCandidates];
+    d.keep = new int[numCandidates];
+    d.batch = new DetectionBatch(numCandidates);
 
     return d;
   }
 
   private TensorFlowMultiBoxDetector() {}
 
+  /** Selects exact or table-driven sigmoid for score decoding; approximate by default. */
+  public synchronized void setMathMode(final FastMath.Mode mathMode) {
+    this.mathMode = mathMode;
+  }
+
+  /**
+   * Sets how many images {@link #recognizeImages} feeds per run. Batch buffers are allocated on
+   * first use for this size and kept.
+   */
+  public synchronized void setMaxBatchSize(final int maxBatchSize) {
+    this.maxBatchSize =
+        BatchInput.getBatchLimit(inferenceInterface.graphOperation(inputName), maxBatchSize);
+  }
+
   private void loadCoderOptions(
-      final AssetManager assetManager, final String locationFilename, final float[] boxPriors)
+      final AssetManager assetManager,
+      final File cacheDir,
+      final String locationFilename,
+      final float[] boxPriors)
       throws IOException {
     // Try to be intelligent about opening from assets or sdcard depending on prefix.
-    final String assetPrefix = "file:///android_asset/";
-    InputStream is;
-    if (locationFilename.startsWith(assetPrefix)) {
-      is = assetManager.open(locationFilename.split(assetPrefix)[1]);
-    } else {
-      is = new FileInputStream(locationFilename);
+    final CachedAsset priors = CachedAsset.open(assetManager, cacheDir, locationFilename);
+    if (priors.readFloats(boxPriors)) {
+      return;
     }
 
     // Read values. Number of values per line doesn't matter, as long as they are separated
     // by commas and/or whitespace, and there are exactly numLocations * 8 values total.
     // Values are in the order mean, std for each consecutive corner of each box, for a total of 8
     // per location.
-    final BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(priors.openSource()));
     int priorIndex = 0;
     String line;
     while ((line = reader.readLine()) != null) {
@@ -170,61 +269,158 @@ public class TensorFlowMultiBoxDetector implements Classifier {
       throw new RuntimeException(
           "BoxPrior length mismatch: " + priorIndex + " vs " + boxPriors.length);
     }
+    priors.writeFloats(boxPriors);
   }
 
-  private float[] decodeLocationsEncoding(final float[] locationEncoding) {
-    final float[] locations = new float[locationEncoding.length];
-    boolean nonZero = false;
-    for (int i = 0; i < numLocations; ++i) {
-      for (int j = 0; j < 4; ++j) {
-        final float currEncoding = locationEncoding[4 * i + j];
-        nonZero = nonZero || currEncoding != 0.0f;
-
-        final float mean = boxPriors[i * 8 + j * 2];
-        final float stdDev = boxPriors[i * 8 + j * 2 + 1];
-        float currentLocation = currEncoding * stdDev + mean;
-        currentLocation = Math.max(currentLocation, 0.0f);
-        currentLocation = Math.min(currentLocation, 1.0f);
-        locations[4 * i + j] = currentLocation;
-      }
+  /**
+   * Decodes the box of one location into out[offset..offset+3], in [0, 1] coordinates. base is
+   * where the image's encodings start in outputLocationsEncoding.
+   */
+  private void decodeLocation(
+      final int base, final int location, final float[] out, final int offset) {
+    for (int j = 0; j < 4; ++j) {
+      final float currEncoding = outputLocationsEncoding[base + 4 * location + j];
+      final float mean = boxPriors[location * 8 + j * 2];
+      final float stdDev = boxPriors[location * 8 + j * 2 + 1];
+      float currentLocation = currEncoding * stdDev + mean;
+      currentLocation = Math.max(currentLocation, 0.0f);
+      currentLocation = Math.min(currentLocation, 1.0f);
+      out[offset + j] = currentLocation;
     }
+  }
 
-    if (!nonZero) {
-      LOGGER.w("No non-zero encodings; check log for inference errors.");
+  @Override
+  public synchronized List<Recognition> recognizeImage(final Bitmap bitmap) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
+    Trace.beginSection("preprocessBitmap");
+    // Preprocess the image data from 0-255 int to normalized float based
+    // on the provided parameters. Pixels only pass through direct buffers, so
+    // feeding them to TensorFlow needs no extra copy through the Java heap.
+    pixelBuffer.rewind();
+    bitmap.copyPixelsToBuffer(pixelBuffer);
+    if (uint8Input) {
+      preprocessor.applyRawRgba(pixelBuffer, rawInputBuffer);
+    } else {
+      preprocessor.applyRgba(pixelBuffer, inputBuffer);
     }
-    return locations;
-  }
+    Trace.endSection(); // preprocessBitmap
 
-  private float[] decodeScoresEncoding(final float[] scoresEncoding) {
-    final float[] scores = new float[scoresEncoding.length];
-    for (int i = 0; i < scoresEncoding.length; ++i) {
-      scores[i] = 1 / ((float) (1 + Math.exp(-scoresEncoding[i])));
+    // Copy the input data into TensorFlow. Feeding drains the buffer, so rewind it every time.
+    Trace.beginSection("feed");
+    if (uint8Input) {
+      rawInputBuffer.rewind();
+      inferenceInterface.feed(inputName, rawInputBuffer, 1, inputSize, inputSize, 3);
+    } else {
+      inputBuffer.rewind();
+      inferenceInterface.feed(inputName, inputBuffer, 1, inputSize, inputSize, 3);
     }
-    return scores;
+    Trace.endSection();
+
+    detect(batch);
+    final List<Recognition> recognitions = batch.toRecognitions();
+    Trace.endSection(); // "recognizeImage"
+    return recognitions;
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeImage(final float[] pixels) {
+    recognizeImage(pixels, batch);
+    return batch.toRecognitions();
   }
 
   @Override
-  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+  public synchronized void recognizeImage(final float[] pixels, final DetectionBatch results) {
+    if (uint8Input) {
+      throw new IllegalStateException("Graph takes uint8 input; use recognizeImage(byte[]).");
+    }
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
-    Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    // Copy the input data into TensorFlow.
+    Trace.beginSection("feed");
+    inferenceInterface.feed(inputName, pixels, 1, inputSize, inputSize, 3);
+    Trace.endSection();
 
-    for (int i = 0; i < intValues.length; ++i) {
-      floatValues[i * 3 + 0] = ((intValues[i] & 0xFF) - imageMean) / imageStd;
-      floatValues[i * 3 + 1] = (((intValues[i] >> 8) & 0xFF) - imageMean) / imageStd;
-      floatValues[i * 3 + 2] = (((intValues[i] >> 16) & 0xFF) - imageMean) / imageStd;
+    detect(results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeImage(final byte[] pixels) {
+    recognizeImage(pixels, batch);
+    return batch.toRecognitions();
+  }
+
+  @Override
+  public synchronized void recognizeImage(final byte[] pixels, final DetectionBatch results) {
+    if (!uint8Input) {
+      throw new IllegalStateException("Graph takes float input; use recognizeImage(float[]).");
     }
-    Trace.endSection(); // preprocessBitmap
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
 
     // Copy the input data into TensorFlow.
     Trace.beginSection("feed");
-    inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
+    inferenceInterface.feed(inputName, pixels, 1, inputSize, inputSize, 3);
     Trace.endSection();
 
+    detect(results);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public synchronized List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    final List<List<Recognition>> recognitions =
+        new ArrayList<List<Recognition>>(bitmaps.size());
+    for (int start = 0; start < bitmaps.size(); start += maxBatchSize) {
+      final int count = Math.min(maxBatchSize, bitmaps.size() - start);
+      // Log this method so that it can be analyzed with systrace.
+      Trace.beginSection("recognizeImages");
+      ensureBatchCapacity();
+
+      Trace.beginSection("preprocessBitmap");
+      for (int i = 0; i < count; ++i) {
+        batchInput.put(i, bitmaps.get(start + i), preprocessor);
+      }
+      Trace.endSection();
+
+      // Copy the input data into TensorFlow.
+      Trace.beginSection("feed");
+      batchInput.feed(inferenceInterface, inputName, count);
+      Trace.endSection();
+
+      runInference();
+      for (int i = 0; i < count; ++i) {
+        decode(i, batch);
+        recognitions.add(batch.toRecognitions());
+      }
+      Trace.endSection(); // "recognizeImages"
+    }
+    return recognitions;
+  }
+
+  @Override
+  public boolean hasUint8Input() {
+    return uint8Input;
+  }
+
+  private void ensureBatchCapacity() {
+    if (batchInput != null && batchInput.getCapacity() == maxBatchSize) {
+      return;
+    }
+    batchInput = new BatchInput(maxBatchSize, inputSize, uint8Input);
+    outputScoresEncoding = new float[maxBatchSize * numLocations];
+    outputLocationsEncoding = new float[maxBatchSize * numLocations * 4];
+  }
+
+  private void detect(final DetectionBatch results) {
+    runInference();
+    decode(0, results);
+  }
+
+  private void runInference() {
     // Run the inference call.
     Trace.beginSection("run");
     inferenceInterface.run(outputNames, logStats);
@@ -232,58 +428,76 @@ public class TensorFlowMultiBoxDetector implements Classifier {
 
     // Copy the output Tensor back into the output array.
     Trace.beginSection("fetch");
-    final float[] outputScoresEncoding = new float[numLocations];
-    final float[] outputLocationsEncoding = new float[numLocations * 4];
     inferenceInterface.fetch(outputNames[0], outputLocationsEncoding);
     inferenceInterface.fetch(outputNames[1], outputScoresEncoding);
     Trace.endSection();
+  }
 
-    outputLocations = decodeLocationsEncoding(outputLocationsEncoding);
-    outputScores = decodeScoresEncoding(outputScoresEncoding);
-
-    // Find the best detections.
-    final PriorityQueue<Recognition> pq =
-        new PriorityQueue<Recognition>(
-            1,
-            new Comparator<Recognition>() {
-              @Override
-              public int compare(final Recognition lhs, final Recognition rhs) {
-                // Intentionally reversed to put high confidence at the head of the queue.
-                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-              }
-            });
+  /** Writes the detections of the given image of the last run into results. */
+  private void decode(final int image, final DetectionBatch results) {
+    final int scoreBase = image * numLocations;
+    final int locationBase = image * numLocations * 4;
 
-    // Scale them back to the input size.
-    for (int i = 0; i < outputScores.length; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[4 * i] * inputSize,
-              outputLocations[4 * i + 1] * inputSize,
-              outputLocations[4 * i + 2] * inputSize,
-              outputLocations[4 * i + 3] * inputSize);
-      pq.add(new Recognition("" + i, null, outputScores[i], detection));
+    // Select the best locations on their raw logits; sigmoid is monotonic, so the ranking is the
+    // same, and everything below the floor or the current k-th best is skipped unexamined.
+    Trace.beginSection("select");
+    topK.clear();
+    for (int i = 0; i < numLocations; ++i) {
+      final float logit = outputScoresEncoding[scoreBase + i];
+      if (logit > minScoreLogit && logit > topK.threshold()) {
+        topK.offer(i, logit);
+      }
     }
+    final int numCandidates = topK.sort();
 
-    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-    for (int i = 0; i < Math.min(pq.size(), MAX_RESULTS); ++i) {
-      recognitions.add(pq.poll());
+    // Only the winners get their priors decoded and their scores squashed.
+    boolean nonZero = false;
+    for (int r = 0; r < numCandidates; ++r) {
+      final int location = topK.getIndex(r);
+      decodeLocation(locationBase, location, candidateBoxes, 4 * r);
+      candidateScores[r] = mathMode.sigmoid(topK.getScore(r));
+      for (int j = 0; j < 4; ++j) {
+        nonZero = nonZero || outputLocationsEncoding[locationBase + 4 * location + j] != 0.0f;
+      }
+    }
+    if (numCandidates > 0 && !nonZero) {
+      LOGGER.w("No non-zero encodings; check log for inference errors.");
+    }
+    Trace.endSection();
+
+    // Suppress overlapping locations here, once, so the tracker only sees distinct objects. The
+    // survivors come back sorted by descending score.
+    Trace.beginSection("nms");
+    final int numKept = nms.run(candidateBoxes, candidateScores, null, numCandidates, keep);
+    Trace.endSection();
+
+    // Scale them back to the input size.
+    results.clear(null);
+    for (int k = 0; k < numKept; ++k) {
+      final int r = keep[k];
+      results.add(
+          topK.getIndex(r),
+          0,
+          candidateScores[r],
+          candidateBoxes[4 * r] * inputSize,
+          candidateBoxes[4 * r + 1] * inputSize,
+          candidateBoxes[4 * r + 2] * inputSize,
+          candidateBoxes[4 * r + 3] * inputSize);
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
   }
 
   @Override
-  public void enableStatLogging(final boolean logStats) {
+  public synchronized void enableStatLogging(final boolean logStats) {
     this.logStats = logStats;
   }
 
   @Override
-  public String getStatString() {
+  public synchronized String getStatString() {
     return inferenceInterface.getStatString();
   }
 
   @Override
-  public void close() {
+  protected void closeSession() {
     inferenceInterface.close();
   }
 }
@@ -17,18 +17,23 @@ package org.tensorflow.demo;
 
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.os.Trace;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
+import org.tensorflow.DataType;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+import org.tensorflow.demo.env.FastMath;
 import org.tensorflow.demo.env.Logger;
+import org.tensorflow.demo.env.NonMaxSuppression;
+import org.tensorflow.demo.env.Preprocessor;
+import org.tensorflow.demo.env.Preprocessor.ChannelOrder;
 import org.tensorflow.demo.env.SplitTimer;
 
 /** An object detector that uses TF and a YOLO model to detect objects. */
-public class TensorFlowYoloDetector implements Classifier {
+public class TensorFlowYoloDetector extends QueuedClassifier {
   private static final Logger LOGGER = new Logger();
 
   static {
@@ -37,9 +42,19 @@ public class TensorFlowYoloDetector implements Classifier {
 
   // Only return this many results with at least this confidence.
   private static final int MAX_RESULTS = 5;
+  private static final float MIN_CONFIDENCE = 0.01f;
+
+  // Number of best boxes decoded and passed through per-class non-maximum suppression.
+  private static final int MAX_CANDIDATES = 50;
+  private static final float NMS_IOU_THRESHOLD = 0.4f;
+  private static final int NMS_GRID_SIZE = 8;
+  private static final float MIN_CONFIDENCE_LOGIT = FastMath.logit(MIN_CONFIDENCE);
 
   private static final int NUM_CLASSES = 20;
 
+  // Images fed per run by recognizeImages, unless the graph only takes one.
+  private static final int DEFAULT_MAX_BATCH_SIZE = 4;
+
   private static final int NUM_BOXES_PER_BLOCK = 5;
 
   // TODO(andrewharp): allow loading anchors and classes
@@ -75,19 +90,52 @@ public class TensorFlowYoloDetector implements Classifier {
     "tvmonitor"
   };
 
+  /** YOLO takes RGB values scaled into [0, 1]. */
+  public static final Preprocessor.Spec PREPROCESSOR_SPEC =
+      Preprocessor.Spec.uniform(ChannelOrder.RGB, 0.0f, 255.0f);
+
   // Config values.
   private String inputName;
   private int inputSize;
+  private int maxBatchSize;
+  private Preprocessor preprocessor;
 
   // Pre-allocated buffers.
-  private int[] intValues;
-  private float[] floatValues;
+  private IntBuffer pixelBuffer;
+  private FloatBuffer inputBuffer;
+  private ByteBuffer rawInputBuffer;
+  private BatchInput batchInput;
   private String[] outputNames;
+  // The output of one image, or [N, ...] once a batch has been run.
+  private float[] output;
+  private int outputSizePerImage;
+
+  // The best detections of the current frame, sorted by descending confidence.
+  private final float[] topConfidences = new float[MAX_CANDIDATES];
+  private final int[] topOffsets = new int[MAX_CANDIDATES];
+  private final int[] topClasses = new int[MAX_CANDIDATES];
+  private final float[] topBoxes = new float[MAX_CANDIDATES * 4];
+  private final int[] keep = new int[MAX_RESULTS];
+  private final DetectionBatch batch = new DetectionBatch(MAX_RESULTS);
+
+  private final NonMaxSuppression nms =
+      new NonMaxSuppression(
+          NonMaxSuppression.Method.HARD,
+          NMS_IOU_THRESHOLD,
+          MIN_CONFIDENCE,
+          0.0f,
+          false,
+          NMS_GRID_SIZE);
 
   private int blockSize;
 
+  // Whether the graph's input tensor is uint8 rather than float.
+  private boolean uint8Input;
+
   private boolean logStats = false;
 
+  private FastMath.Mode mathMode = FastMath.Mode.APPROXIMATE;
+
   private TensorFlowInferenceInterface inferenceInterface;
 
   /** Initializes a native TensorFlow session for classifying images. */
@@ -104,60 +152,198 @@ public class TensorFlowYoloDetector implements Classifier {
 
     // Pre-allocate buffers.
     d.outputNames = outputName.split(",");
-    d.intValues = new int[inputSize * inputSize];
-    d.floatValues = new float[inputSize * inputSize * 3];
+    d.pixelBuffer = Preprocessor.allocatePixelBuffer(inputSize * inputSize);
     d.blockSize = blockSize;
+    final int gridSize = inputSize / blockSize;
+    d.outputSizePerImage = gridSize * gridSize * (NUM_CLASSES + 5) * NUM_BOXES_PER_BLOCK;
+    d.output = new float[d.outputSizePerImage];
+    d.preprocessor = new Preprocessor(PREPROCESSOR_SPEC);
 
     d.inferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFilename);
 
+    // Quantized graphs may take raw uint8 pixels, in which case they are not normalized in Java.
+    d.uint8Input =
+        d.inferenceInterface.graphOperation(inputName).output(0).dataType() == DataType.UINT8;
+    d.maxBatchSize =
+        BatchInput.getBatchLimit(
+            d.inferenceInterface.graphOperation(inputName), DEFAULT_MAX_BATCH_SIZE);
+    if (d.uint8Input) {
+      d.rawInputBuffer = Preprocessor.allocateRawInputBuffer(inputSize * inputSize);
+    } else {
+      d.inputBuffer = Preprocessor.allocateInputBuffer(inputSize * inputSize);
+    }
+
     return d;
   }
 
   private TensorFlowYoloDetector() {}
 
+  /** Selects exact or table-driven sigmoid and exp for decoding; approximate by default. */
+  public synchronized void setMathMode(final FastMath.Mode mathMode) {
+    this.mathMode = mathMode;
+  }
+
+  /**
+   * Sets how many images {@link #recognizeImages} feeds per run. Batch buffers are allocated on
+   * first use for this size and kept.
+   */
+  public synchronized void setMaxBatchSize(final int maxBatchSize) {
+    this.maxBatchSize =
+        BatchInput.getBatchLimit(inferenceInterface.graphOperation(inputName), maxBatchSize);
+  }
+
   private float expit(final float x) {
-    return (float) (1. / (1. + Math.exp(-x)));
+    return mathMode.sigmoid(x);
   }
 
-  private void softmax(final float[] vals) {
-    float max = Float.NEGATIVE_INFINITY;
-    for (final float val : vals) {
-      max = Math.max(max, val);
-    }
-    float sum = 0.0f;
-    for (int i = 0; i < vals.length; ++i) {
-      vals[i] = (float) Math.exp(vals[i] - max);
-      sum += vals[i];
+  @Override
+  public synchronized List<Recognition> recognizeImage(final Bitmap bitmap) {
+    final SplitTimer timer = new SplitTimer("recognizeImage");
+
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
+    Trace.beginSection("preprocessBitmap");
+    // Preprocess the image data from 0-255 int to normalized float based
+    // on the provided parameters. Pixels only pass through direct buffers, so
+    // feeding them to TensorFlow needs no extra copy through the Java heap.
+    pixelBuffer.rewind();
+    bitmap.copyPixelsToBuffer(pixelBuffer);
+    if (uint8Input) {
+      preprocessor.applyRawRgba(pixelBuffer, rawInputBuffer);
+    } else {
+      preprocessor.applyRgba(pixelBuffer, inputBuffer);
     }
-    for (int i = 0; i < vals.length; ++i) {
-      vals[i] = vals[i] / sum;
+    Trace.endSection(); // preprocessBitmap
+
+    // Copy the input data into TensorFlow. Feeding drains the buffer, so rewind it every time.
+    Trace.beginSection("feed");
+    if (uint8Input) {
+      rawInputBuffer.rewind();
+      inferenceInterface.feed(inputName, rawInputBuffer, 1, inputSize, inputSize, 3);
+    } else {
+      inputBuffer.rewind();
+      inferenceInterface.feed(inputName, inputBuffer, 1, inputSize, inputSize, 3);
     }
+    Trace.endSection();
+
+    detect(timer, batch);
+    final List<Recognition> recognitions = batch.toRecognitions();
+    Trace.endSection(); // "recognizeImage"
+
+    timer.endSplit("processed results");
+
+    return recognitions;
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeImage(final float[] pixels) {
+    recognizeImage(pixels, batch);
+    return batch.toRecognitions();
   }
 
   @Override
-  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+  public synchronized void recognizeImage(final float[] pixels, final DetectionBatch results) {
+    if (uint8Input) {
+      throw new IllegalStateException("Graph takes uint8 input; use recognizeImage(byte[]).");
+    }
     final SplitTimer timer = new SplitTimer("recognizeImage");
 
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
-    Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    // Copy the input data into TensorFlow.
+    Trace.beginSection("feed");
+    inferenceInterface.feed(inputName, pixels, 1, inputSize, inputSize, 3);
+    Trace.endSection();
+
+    detect(timer, results);
+    Trace.endSection(); // "recognizeImage"
+
+    timer.endSplit("processed results");
+  }
+
+  @Override
+  public synchronized List<Recognition> recognizeImage(final byte[] pixels) {
+    recognizeImage(pixels, batch);
+    return batch.toRecognitions();
+  }
 
-    for (int i = 0; i < intValues.length; ++i) {
-      floatValues[i * 3 + 0] = ((intValues[i] >> 16) & 0xFF) / 255.0f;
-      floatValues[i * 3 + 1] = ((intValues[i] >> 8) & 0xFF) / 255.0f;
-      floatValues[i * 3 + 2] = (intValues[i] & 0xFF) / 255.0f;
+  @Override
+  public synchronized void recognizeImage(final byte[] pixels, final DetectionBatch results) {
+    if (!uint8Input) {
+      throw new IllegalStateException("Graph takes float input; use recognizeImage(float[]).");
     }
-    Trace.endSection(); // preprocessBitmap
+    final SplitTimer timer = new SplitTimer("recognizeImage");
+
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
 
     // Copy the input data into TensorFlow.
     Trace.beginSection("feed");
-    inferenceInterface.feed(inputName, floatValues, 1, inputSize, inputSize, 3);
+    inferenceInterface.feed(inputName, pixels, 1, inputSize, inputSize, 3);
     Trace.endSection();
 
+    detect(timer, results);
+    Trace.endSection(); // "recognizeImage"
+
+    timer.endSplit("processed results");
+  }
+
+  @Override
+  public synchronized List<List<Recognition>> recognizeImages(final List<Bitmap> bitmaps) {
+    final List<List<Recognition>> recognitions =
+        new ArrayList<List<Recognition>>(bitmaps.size());
+    for (int start = 0; start < bitmaps.size(); start += maxBatchSize) {
+      final int count = Math.min(maxBatchSize, bitmaps.size() - start);
+      final SplitTimer timer = new SplitTimer("recognizeImages");
+
+      // Log this method so that it can be analyzed with systrace.
+      Trace.beginSection("recognizeImages");
+      ensureBatchCapacity();
+
+      Trace.beginSection("preprocessBitmap");
+      for (int i = 0; i < count; ++i) {
+        batchInput.put(i, bitmaps.get(start + i), preprocessor);
+      }
+      Trace.endSection();
+
+      // Copy the input data into TensorFlow.
+      Trace.beginSection("feed");
+      batchInput.feed(inferenceInterface, inputName, count);
+      Trace.endSection();
+
+      runInference(timer);
+      for (int i = 0; i < count; ++i) {
+        decode(timer, i, batch);
+        recognitions.add(batch.toRecognitions());
+      }
+      Trace.endSection(); // "recognizeImages"
+
+      timer.endSplit("processed results");
+    }
+    return recognitions;
+  }
+
+  @Override
+  public boolean hasUint8Input() {
+    return uint8Input;
+  }
+
+  private void ensureBatchCapacity() {
+    if (batchInput != null && batchInput.getCapacity() == maxBatchSize) {
+      return;
+    }
+    batchInput = new BatchInput(maxBatchSize, inputSize, uint8Input);
+    output = new float[maxBatchSize * outputSizePerImage];
+  }
+
+  private void detect(final SplitTimer timer, final DetectionBatch results) {
+    runInference(timer);
+    decode(timer, 0, results);
+  }
+
+  private void runInference(final SplitTimer timer) {
     timer.endSplit("ready for inference");
 
     // Run the inference call.
@@ -169,97 +355,126 @@ public class TensorFlowYoloDetector implements Classifier {
 
     // Copy the output Tensor back into the output array.
     Trace.beginSection("fetch");
-    final int gridWidth = bitmap.getWidth() / blockSize;
-    final int gridHeight = bitmap.getHeight() / blockSize;
-    final float[] output =
-        new float[gridWidth * gridHeight * (NUM_CLASSES + 5) * NUM_BOXES_PER_BLOCK];
     inferenceInterface.fetch(outputNames[0], output);
     Trace.endSection();
+  }
 
-    // Find the best detections.
-    final PriorityQueue<Recognition> pq =
-        new PriorityQueue<Recognition>(
-            1,
-            new Comparator<Recognition>() {
-              @Override
-              public int compare(final Recognition lhs, final Recognition rhs) {
-                // Intentionally reversed to put high confidence at the head of the queue.
-                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-              }
-            });
+  /** Writes the detections of the given image of the last run into results. */
+  private void decode(final SplitTimer timer, final int image, final DetectionBatch results) {
+    final int base = image * outputSizePerImage;
 
+    // Find the best detections. Boxes are only decoded for the ones that make the cut.
+    final int gridWidth = inputSize / blockSize;
+    final int gridHeight = inputSize / blockSize;
+    int numResults = 0;
+    float floor = MIN_CONFIDENCE;
+    float floorLogit = MIN_CONFIDENCE_LOGIT;
     for (int y = 0; y < gridHeight; ++y) {
       for (int x = 0; x < gridWidth; ++x) {
         for (int b = 0; b < NUM_BOXES_PER_BLOCK; ++b) {
           final int offset =
-              (gridWidth * (NUM_BOXES_PER_BLOCK * (NUM_CLASSES + 5))) * y
+              base
+                  + (gridWidth * (NUM_BOXES_PER_BLOCK * (NUM_CLASSES + 5))) * y
                   + (NUM_BOXES_PER_BLOCK * (NUM_CLASSES + 5)) * x
                   + (NUM_CLASSES + 5) * b;
 
-          final float xPos = (x + expit(output[offset + 0])) * blockSize;
-          final float yPos = (y + expit(output[offset + 1])) * blockSize;
-
-          final float w = (float) (Math.exp(output[offset + 2]) * ANCHORS[2 * b + 0]) * blockSize;
-          final float h = (float) (Math.exp(output[offset + 3]) * ANCHORS[2 * b + 1]) * blockSize;
-
-          final RectF rect =
-              new RectF(
-                  Math.max(0, xPos - w / 2),
-                  Math.max(0, yPos - h / 2),
-                  Math.min(bitmap.getWidth() - 1, xPos + w / 2),
-                  Math.min(bitmap.getHeight() - 1, yPos + h / 2));
+          // The class confidence is the objectness scaled by a class probability, so it can never
+          // exceed the objectness. Most boxes are rejected here, on the raw logit, before any
+          // transcendental call or class work.
+          if (output[offset + 4] <= floorLogit) {
+            continue;
+          }
           final float confidence = expit(output[offset + 4]);
 
-          int detectedClass = -1;
-          float maxClass = 0;
-
-          final float[] classes = new float[NUM_CLASSES];
+          // Only the winning class's softmax probability is needed, 1 / sum(exp(l_c - l_max)).
+          int detectedClass = 0;
+          float maxLogit = output[offset + 5];
+          for (int c = 1; c < NUM_CLASSES; ++c) {
+            if (output[offset + 5 + c] > maxLogit) {
+              detectedClass = c;
+              maxLogit = output[offset + 5 + c];
+            }
+          }
+          float sum = 0.0f;
           for (int c = 0; c < NUM_CLASSES; ++c) {
-            classes[c] = output[offset + 5 + c];
+            sum += mathMode.exp(output[offset + 5 + c] - maxLogit);
           }
-          softmax(classes);
 
-          for (int c = 0; c < NUM_CLASSES; ++c) {
-            if (classes[c] > maxClass) {
-              detectedClass = c;
-              maxClass = classes[c];
-            }
+          final float confidenceInClass = confidence / sum;
+          if (confidenceInClass <= floor) {
+            continue;
+          }
+
+          // Insertion into the sorted top candidates; MAX_CANDIDATES is small.
+          int i = numResults < MAX_CANDIDATES ? numResults++ : MAX_CANDIDATES - 1;
+          for (; i > 0 && topConfidences[i - 1] < confidenceInClass; --i) {
+            topConfidences[i] = topConfidences[i - 1];
+            topOffsets[i] = topOffsets[i - 1];
+            topClasses[i] = topClasses[i - 1];
           }
+          topConfidences[i] = confidenceInClass;
+          topOffsets[i] = offset;
+          topClasses[i] = detectedClass;
 
-          final float confidenceInClass = maxClass * confidence;
-          if (confidenceInClass > 0.01) {
-            LOGGER.i(
-                "%s (%d) %f %s", LABELS[detectedClass], detectedClass, confidenceInClass, rect);
-            pq.add(new Recognition("" + offset, LABELS[detectedClass], confidenceInClass, rect));
+          if (numResults == MAX_CANDIDATES) {
+            floor = topConfidences[MAX_CANDIDATES - 1];
+            floorLogit = FastMath.logit(floor);
           }
         }
       }
     }
     timer.endSplit("decoded results");
 
-    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-    for (int i = 0; i < Math.min(pq.size(), MAX_RESULTS); ++i) {
-      recognitions.add(pq.poll());
-    }
-    Trace.endSection(); // "recognizeImage"
+    for (int i = 0; i < numResults; ++i) {
+      final int offset = topOffsets[i];
+      final int box = (offset - base) / (NUM_CLASSES + 5);
+      final int b = box % NUM_BOXES_PER_BLOCK;
+      final int x = (box / NUM_BOXES_PER_BLOCK) % gridWidth;
+      final int y = box / NUM_BOXES_PER_BLOCK / gridWidth;
 
-    timer.endSplit("processed results");
+      final float xPos = (x + expit(output[offset + 0])) * blockSize;
+      final float yPos = (y + expit(output[offset + 1])) * blockSize;
 
-    return recognitions;
+      final float w = (float) (mathMode.exp(output[offset + 2]) * ANCHORS[2 * b + 0]) * blockSize;
+      final float h = (float) (mathMode.exp(output[offset + 3]) * ANCHORS[2 * b + 1]) * blockSize;
+
+      topBoxes[4 * i] = Math.max(0, xPos - w / 2);
+      topBoxes[4 * i + 1] = Math.max(0, yPos - h / 2);
+      topBoxes[4 * i + 2] = Math.min(inputSize - 1, xPos + w / 2);
+      topBoxes[4 * i + 3] = Math.min(inputSize - 1, yPos + h / 2);
+    }
+
+    // Suppress duplicate boxes of the same class here, once, so the tracker only sees distinct
+    // objects.
+    final int numKept = nms.run(topBoxes, topConfidences, topClasses, numResults, keep);
+
+    results.clear(LABELS);
+    for (int k = 0; k < numKept; ++k) {
+      final int i = keep[k];
+      results.add(
+          topOffsets[i] - base,
+          topClasses[i],
+          topConfidences[i],
+          topBoxes[4 * i],
+          topBoxes[4 * i + 1],
+          topBoxes[4 * i + 2],
+          topBoxes[4 * i + 3]);
+    }
+    timer.endSplit("suppressed overlaps");
   }
 
   @Override
-  public void enableStatLogging(final boolean logStats) {
+  public synchronized void enableStatLogging(final boolean logStats) {
     this.logStats = logStats;
   }
 
   @Override
-  public String getStatString() {
+  public synchronized String getStatString() {
     return inferenceInterface.getStatString();
   }
 
   @Override
-  public void close() {
+  protected void closeSession() {
     inferenceInterface.close();
   }
 }
@@ -0,0 +1,205 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import android.graphics.Bitmap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Recycles Bitmaps and pixel arrays between frames, so per-frame copies stop churning the heap.
+ *
+ * <p>Bitmaps are pooled by width, height and config, and arrays by type and length. Acquiring
+ * takes an idle object of the exact kind if there is one and allocates otherwise; releasing
+ * makes it idle again. Acquired objects keep whatever content they last held. The idle objects
+ * are bounded by a byte budget: when a release exceeds it, idle objects of the least recently
+ * used kinds are dropped for the GC, so sizes that are no longer in use do not pin memory.
+ *
+ * <p>Immutable bitmaps are never pooled, so it is safe to release a bitmap of unknown origin. A
+ * bitmap must not be released while something may still draw it, nor recycled once released.
+ *
+ * <p>Thread-safe.
+ */
+public class BitmapPool {
+  // Kinds of pooled object, stored in the top bits of their keys.
+  private static final long KIND_BITMAP = 0L << 60;
+  private static final long KIND_INTS = 1L << 60;
+  private static final long KIND_FLOATS = 2L << 60;
+  private static final long KIND_BYTES = 3L << 60;
+
+  private final long maxBytes;
+
+  // Idle objects by key, with the least recently used kind first.
+  private final LinkedHashMap<Long, ArrayDeque<Object>> idle =
+      new LinkedHashMap<Long, ArrayDeque<Object>>(16, 0.75f, true);
+  private long idleBytes;
+
+  private int hits;
+  private int misses;
+
+  /** @param maxBytes Upper bound on the memory held by idle objects. */
+  public BitmapPool(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns a mutable width x height bitmap, with undefined content. */
+  public synchronized Bitmap acquireBitmap(
+      final int width, final int height, final Bitmap.Config config) {
+    final Bitmap bitmap = (Bitmap) take(bitmapKey(width, height, config));
+    if (bitmap != null) {
+      idleBytes -= bitmap.getByteCount();
+      return bitmap;
+    }
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  public synchronized int[] acquireInts(final int length) {
+    final int[] array = (int[]) take(KIND_INTS | length);
+    if (array != null) {
+      idleBytes -= 4L * length;
+      return array;
+    }
+    return new int[length];
+  }
+
+  public synchronized float[] acquireFloats(final int length) {
+    final float[] array = (float[]) take(KIND_FLOATS | length);
+    if (array != null) {
+      idleBytes -= 4L * length;
+      return array;
+    }
+    return new float[length];
+  }
+
+  public synchronized byte[] acquireBytes(final int length) {
+    final byte[] array = (byte[]) take(KIND_BYTES | length);
+    if (array != null) {
+      idleBytes -= length;
+      return array;
+    }
+    return new byte[length];
+  }
+
+  /** Makes bitmap available to later acquires; null, recycled and immutable bitmaps are ignored. */
+  public synchronized void release(final Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+      return;
+    }
+    put(
+        bitmapKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()),
+        bitmap,
+        bitmap.getByteCount());
+  }
+
+  public synchronized void release(final int[] array) {
+    if (array != null) {
+      put(KIND_INTS | array.length, array, 4L * array.length);
+    }
+  }
+
+  public synchronized void release(final float[] array) {
+    if (array != null) {
+      put(KIND_FLOATS | array.length, array, 4L * array.length);
+    }
+  }
+
+  public synchronized void release(final byte[] array) {
+    if (array != null) {
+      put(KIND_BYTES | array.length, array, array.length);
+    }
+  }
+
+  /** The memory held by idle objects. */
+  public synchronized long getIdleBytes() {
+    return idleBytes;
+  }
+
+  /** The number of acquires served from the pool. */
+  public synchronized int getHitCount() {
+    return hits;
+  }
+
+  /** The number of acquires that had to allocate. */
+  public synchronized int getMissCount() {
+    return misses;
+  }
+
+  /** Reuse and footprint, for debug overlays. */
+  public synchronized String getStatString() {
+    return String.format("Pool: %d hits, %d misses, %dKB idle", hits, misses, idleBytes / 1024);
+  }
+
+  /** Drops every idle object. */
+  public synchronized void clear() {
+    idle.clear();
+    idleBytes = 0;
+  }
+
+  private static long bitmapKey(final int width, final int height, final Bitmap.Config config) {
+    return KIND_BITMAP
+        | ((long) width << 32)
+        | ((long) height << 4)
+        | (config != null ? config.ordinal() : 0xF);
+  }
+
+  private Object take(final long key) {
+    final ArrayDeque<Object> objects = idle.get(key);
+    final Object object = objects != null ? objects.poll() : null;
+    if (object != null) {
+      ++hits;
+    } else {
+      ++misses;
+    }
+    return object;
+  }
+
+  private void put(final long key, final Object object, final long numBytes) {
+    if (numBytes > maxBytes) {
+      return;
+    }
+    ArrayDeque<Object> objects = idle.get(key);
+    if (objects == null) {
+      objects = new ArrayDeque<Object>(2);
+      idle.put(key, objects);
+    }
+    objects.push(object);
+    idleBytes += numBytes;
+
+    // Trim the least recently used kinds first; the kind just released is the most recent.
+    final Iterator<ArrayDeque<Object>> it = idle.values().iterator();
+    while (idleBytes > maxBytes && it.hasNext()) {
+      final ArrayDeque<Object> victims = it.next();
+      while (idleBytes > maxBytes && !victims.isEmpty()) {
+        idleBytes -= sizeOf(victims.pollLast());
+      }
+      if (victims.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private static long sizeOf(final Object object) {
+    if (object instanceof Bitmap) {
+      return ((Bitmap) object).getByteCount();
+    } else if (object instanceof int[]) {
+      return 4L * ((int[]) object).length;
+    } else if (object instanceof float[]) {
+      return 4L * ((float[]) object).length;
+    }
+    return ((byte[]) object).length;
+  }
+}
@@ -0,0 +1,291 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import android.content.res.AssetManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * A text asset together with a compiled binary form of its parsed contents, kept in a cache
+ * directory so that later loads skip text parsing.
+ *
+ * <p>Usage: {@link #open} the source, try {@link #readFloats} or {@link #readStrings}, and if that
+ * misses, parse {@link #openSource} as before and hand the result to {@link #writeFloats} or
+ * {@link #writeStrings}.
+ *
+ * <p>Cache files are keyed by the source file name and the CRC32 of its contents, so an edited
+ * source is never matched against a stale cache. Reading and checksumming the raw source bytes is
+ * much cheaper than tokenizing and parsing them. Cache hits are memory-mapped and bulk-copied out.
+ * Any problem with the cache is logged and treated as a miss; it never fails a load.
+ */
+public class CachedAsset {
+  private static final Logger LOGGER = new Logger();
+
+  private static final String ASSET_PREFIX = "file:///android_asset/";
+
+  private static final int MAGIC = 0x54464143; // "TFAC"
+  private static final int VERSION = 1;
+  private static final int KIND_FLOATS = 1;
+  private static final int KIND_STRINGS = 2;
+
+  // magic, version, kind, source CRC, source length, value count.
+  private static final int HEADER_BYTES = 6 * 4;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final String filename;
+  private final byte[] source;
+  private final int sourceCrc;
+  private final File cacheFile;
+
+  private CachedAsset(
+      final String filename, final byte[] source, final int sourceCrc, final File cacheFile) {
+    this.filename = filename;
+    this.source = source;
+    this.sourceCrc = sourceCrc;
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Reads the source file and locates its cache entry.
+   *
+   * @param assetManager Used for filenames starting with file:///android_asset/.
+   * @param cacheDir Directory for the compiled form, or null to always parse the source.
+   * @param filename Asset URI or plain file path of the text source.
+   */
+  public static CachedAsset open(
+      final AssetManager assetManager, final File cacheDir, final String filename)
+      throws IOException {
+    final InputStream is =
+        filename.startsWith(ASSET_PREFIX)
+            ? assetManager.open(filename.substring(ASSET_PREFIX.length()))
+            : new FileInputStream(filename);
+    final byte[] source;
+    try {
+      source = readFully(is);
+    } finally {
+      is.close();
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(source, 0, source.length);
+    final int sourceCrc = (int) crc.getValue();
+
+    final File cacheFile =
+        cacheDir != null
+            ? new File(cacheDir, cachePrefix(filename) + Integer.toHexString(sourceCrc) + ".bin")
+            : null;
+    return new CachedAsset(filename, source, sourceCrc, cacheFile);
+  }
+
+  /** The raw source contents, for parsing on a cache miss. */
+  public InputStream openSource() {
+    return new ByteArrayInputStream(source);
+  }
+
+  /**
+   * Fills out from the cache if it holds exactly out.length floats for this source.
+   *
+   * @return Whether out was filled.
+   */
+  public boolean readFloats(final float[] out) {
+    final ByteBuffer buffer = map(KIND_FLOATS, out.length);
+    if (buffer == null) {
+      return false;
+    }
+    buffer.asFloatBuffer().get(out);
+    LOGGER.i("Read %d values from cache %s", out.length, cacheFile.getName());
+    return true;
+  }
+
+  /** Compiles values into the cache for the next load. */
+  public void writeFloats(final float[] values) {
+    if (cacheFile == null) {
+      return;
+    }
+    final ByteBuffer buffer = newBuffer(KIND_FLOATS, values.length, values.length * 4);
+    buffer.asFloatBuffer().put(values);
+    write(buffer.array());
+  }
+
+  /**
+   * Returns the strings held in the cache for this source, or null if there are none.
+   */
+  public String[] readStrings() {
+    final ByteBuffer buffer = map(KIND_STRINGS, -1);
+    if (buffer == null) {
+      return null;
+    }
+    try {
+      final String[] values = new String[buffer.getInt(HEADER_BYTES - 4)];
+      byte[] scratch = new byte[64];
+      for (int i = 0; i < values.length; ++i) {
+        final int length = buffer.getInt();
+        if (scratch.length < length) {
+          scratch = new byte[length];
+        }
+        buffer.get(scratch, 0, length);
+        values[i] = new String(scratch, 0, length, UTF_8);
+      }
+      LOGGER.i("Read %d strings from cache %s", values.length, cacheFile.getName());
+      return values;
+    } catch (final RuntimeException e) {
+      // Truncated or corrupt; it is rewritten after parsing.
+      LOGGER.w(e, "Discarding corrupt cache %s", cacheFile.getName());
+      return null;
+    }
+  }
+
+  /** Compiles values into the cache for the next load. */
+  public void writeStrings(final String[] values) {
+    if (cacheFile == null) {
+      return;
+    }
+    final byte[][] encoded = new byte[values.length][];
+    int payloadBytes = 0;
+    for (int i = 0; i < values.length; ++i) {
+      encoded[i] = values[i].getBytes(UTF_8);
+      payloadBytes += 4 + encoded[i].length;
+    }
+    final ByteBuffer buffer = newBuffer(KIND_STRINGS, values.length, payloadBytes);
+    for (final byte[] value : encoded) {
+      buffer.putInt(value.length);
+      buffer.put(value);
+    }
+    write(buffer.array());
+  }
+
+  /**
+   * Maps the cache file and checks its header, returning the buffer positioned at the payload, or
+   * null on a miss. expectedCount < 0 accepts any count.
+   */
+  private ByteBuffer map(final int kind, final int expectedCount) {
+    if (cacheFile == null || !cacheFile.isFile()) {
+      return null;
+    }
+    try {
+      final RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+      final MappedByteBuffer buffer;
+      try {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      } finally {
+        // The mapping stays valid after the channel is closed.
+        file.close();
+      }
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.remaining() < HEADER_BYTES
+          || buffer.getInt() != MAGIC
+          || buffer.getInt() != VERSION
+          || buffer.getInt() != kind
+          || buffer.getInt() != sourceCrc
+          || buffer.getInt() != source.length) {
+        LOGGER.w("Ignoring mismatched cache %s", cacheFile.getName());
+        return null;
+      }
+      final int count = buffer.getInt();
+      if (expectedCount >= 0
+          && (count != expectedCount || buffer.remaining() != (long) count * 4)) {
+        LOGGER.w("Ignoring cache %s with %d values, expected %d", cacheFile.getName(), count,
+            expectedCount);
+        return null;
+      }
+      return buffer;
+    } catch (final IOException e) {
+      LOGGER.w(e, "Failed to read cache %s", cacheFile.getName());
+      return null;
+    }
+  }
+
+  private ByteBuffer newBuffer(final int kind, final int count, final int payloadBytes) {
+    final ByteBuffer buffer =
+        ByteBuffer.allocate(HEADER_BYTES + payloadBytes).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(kind);
+    buffer.putInt(sourceCrc);
+    buffer.putInt(source.length);
+    buffer.putInt(count);
+    return buffer;
+  }
+
+  /**
+   * Writes the cache through a temporary file and a rename, so a concurrent or interrupted load
+   * never maps a partial file, and removes entries left by earlier versions of the source.
+   */
+  private void write(final byte[] contents) {
+    final File dir = cacheFile.getParentFile();
+    final File temp = new File(dir, cacheFile.getName() + ".tmp");
+    try {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Could not create " + dir);
+      }
+      final FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(contents);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(cacheFile)) {
+        throw new IOException("Could not rename " + temp + " to " + cacheFile);
+      }
+      LOGGER.i("Cached %s in %s", filename, cacheFile.getName());
+    } catch (final IOException e) {
+      LOGGER.w(e, "Failed to write cache for %s", filename);
+      temp.delete();
+      return;
+    }
+
+    final String prefix = cachePrefix(filename);
+    final File[] stale = dir.listFiles();
+    if (stale != null) {
+      for (final File file : stale) {
+        final String name = file.getName();
+        if (name.startsWith(prefix) && !name.endsWith(".tmp") && !file.equals(cacheFile)) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /** The part of the cache file name shared by every version of the source. */
+  private static String cachePrefix(final String filename) {
+    return filename.replaceAll("[^A-Za-z0-9._-]", "_") + ".";
+  }
+
+  private static byte[] readFully(final InputStream is) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(is.available(), 4096));
+    final byte[] chunk = new byte[8192];
+    int read;
+    while ((read = is.read(chunk)) != -1) {
+      out.write(chunk, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
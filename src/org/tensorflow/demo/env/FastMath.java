@@ -0,0 +1,137 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+/**
+ * Float sigmoid and exp for detector output decoding, where double-precision {@link Math#exp} in
+ * per-location loops dominates the decode time.
+ *
+ * <p>The approximations are table driven with linear interpolation:
+ *
+ * <ul>
+ *   <li>{@link #sigmoid}: absolute error below 4e-6 over all inputs.
+ *   <li>{@link #exp}: relative error below 1e-5 for inputs in [-87, 88]. Inputs outside that
+ *       range are clamped to it, the limits of float. Most of the error at large |x| comes from
+ *       rounding x * log2(e) to float, not from the table.
+ * </ul>
+ *
+ * <p>Where only scores above a threshold matter, compare the raw logit against {@link #logit} of
+ * the threshold instead, so rejected scores never need a sigmoid at all.
+ */
+public final class FastMath {
+  /** Selects exact or approximate implementations, so each detector can choose its trade-off. */
+  public enum Mode {
+    EXACT {
+      @Override
+      public float sigmoid(final float x) {
+        return (float) (1. / (1. + Math.exp(-x)));
+      }
+
+      @Override
+      public float exp(final float x) {
+        return (float) Math.exp(x);
+      }
+    },
+    APPROXIMATE {
+      @Override
+      public float sigmoid(final float x) {
+        return FastMath.sigmoid(x);
+      }
+
+      @Override
+      public float exp(final float x) {
+        return FastMath.exp(x);
+      }
+    };
+
+    public abstract float sigmoid(float x);
+
+    public abstract float exp(float x);
+  }
+
+  // Sigmoid is tabulated over [-SIGMOID_RANGE, SIGMOID_RANGE]; beyond that it is within 1.2e-7
+  // of 0 or 1.
+  private static final float SIGMOID_RANGE = 16.0f;
+  private static final int SIGMOID_STEPS_PER_UNIT = 64;
+  private static final float[] SIGMOID_TABLE =
+      new float[(int) (2 * SIGMOID_RANGE * SIGMOID_STEPS_PER_UNIT) + 2];
+
+  // 2^(i / EXP2_STEPS) for i in [0, EXP2_STEPS], for the fractional part of the exponent.
+  private static final int EXP2_STEPS = 256;
+  private static final float[] EXP2_TABLE = new float[EXP2_STEPS + 2];
+
+  private static final float LOG2_E = (float) (1.0 / Math.log(2.0));
+  private static final float MIN_EXP = -87.0f;
+  private static final float MAX_EXP = 88.0f;
+
+  static {
+    for (int i = 0; i < SIGMOID_TABLE.length; ++i) {
+      final double x = (double) i / SIGMOID_STEPS_PER_UNIT - SIGMOID_RANGE;
+      SIGMOID_TABLE[i] = (float) (1. / (1. + Math.exp(-x)));
+    }
+    for (int i = 0; i < EXP2_TABLE.length; ++i) {
+      EXP2_TABLE[i] = (float) Math.pow(2.0, (double) i / EXP2_STEPS);
+    }
+  }
+
+  private FastMath() {}
+
+  /** Approximates 1 / (1 + e^-x); see the class comment for the error bound. */
+  public static float sigmoid(final float x) {
+    if (x <= -SIGMOID_RANGE) {
+      return 0.0f;
+    }
+    if (x >= SIGMOID_RANGE) {
+      return 1.0f;
+    }
+    final float position = (x + SIGMOID_RANGE) * SIGMOID_STEPS_PER_UNIT;
+    final int index = (int) position;
+    final float fraction = position - index;
+    final float lower = SIGMOID_TABLE[index];
+    return lower + (SIGMOID_TABLE[index + 1] - lower) * fraction;
+  }
+
+  /** Approximates e^x; see the class comment for the error bound. */
+  public static float exp(final float x) {
+    final float clamped = x < MIN_EXP ? MIN_EXP : (x > MAX_EXP ? MAX_EXP : x);
+
+    // e^x = 2^(x * log2(e)) = 2^n * 2^f, with integer n and f in [0, 1).
+    final float exponent = clamped * LOG2_E;
+    final int n = (int) Math.floor(exponent);
+    final float position = (exponent - n) * EXP2_STEPS;
+    final int index = (int) position;
+    final float fraction = position - index;
+    final float lower = EXP2_TABLE[index];
+    final float mantissa = lower + (EXP2_TABLE[index + 1] - lower) * fraction;
+
+    // 2^n assembled directly from its float exponent bits; n is in [-126, 126] after clamping.
+    return mantissa * Float.intBitsToFloat((n + 127) << 23);
+  }
+
+  /**
+   * Returns the logit whose sigmoid is probability, i.e. ln(p / (1 - p)). sigmoid(x) > p exactly
+   * when x > logit(p), so a score threshold can be applied to raw logits.
+   */
+  public static float logit(final float probability) {
+    if (probability <= 0.0f) {
+      return Float.NEGATIVE_INFINITY;
+    }
+    if (probability >= 1.0f) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return (float) Math.log(probability / (1.0 - probability));
+  }
+}
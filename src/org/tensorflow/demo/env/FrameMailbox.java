@@ -0,0 +1,84 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest frame from one producer thread to one consumer thread through three
+ * preallocated slots, without locks and without either side ever waiting.
+ *
+ * <p>At any time the producer owns one slot, which it fills, and the consumer owns another, which
+ * it reads. The third sits in the middle, holding the last published frame. Publishing swaps the
+ * producer's slot with the middle one, and taking swaps the consumer's slot with it, each in a
+ * single atomic operation that also orders every write to the frame before every read of it. A
+ * frame the consumer has not taken by the next publish is replaced, so the consumer always gets
+ * the freshest complete frame and never a partly written one.
+ */
+public class FrameMailbox<F> {
+  // The state holds the index of the middle slot, plus FRESH if it was published and not taken.
+  private static final int INDEX_MASK = 0x3;
+  private static final int FRESH = 0x4;
+
+  private final Object[] slots;
+  private final AtomicInteger state = new AtomicInteger(1);
+
+  // Owned by the producer and consumer threads respectively.
+  private int back = 0;
+  private int front = 2;
+
+  /** @param slots Exactly three frames to cycle through. */
+  public FrameMailbox(final List<F> slots) {
+    if (slots.size() != 3) {
+      throw new IllegalArgumentException("Need exactly 3 slots, got " + slots.size());
+    }
+    this.slots = slots.toArray();
+  }
+
+  /** Producer only: the slot to fill next. It belongs to the producer until {@link #publish}. */
+  @SuppressWarnings("unchecked")
+  public F getBack() {
+    return (F) slots[back];
+  }
+
+  /**
+   * Producer only: publishes the filled back slot and takes a new one to fill.
+   *
+   * @return true if the previous frame had been taken, so the consumer needs waking for this one;
+   *     false if it replaced a frame still waiting, whose wake-up this one inherits.
+   */
+  public boolean publish() {
+    final int previous = state.getAndSet(back | FRESH);
+    back = previous & INDEX_MASK;
+    return (previous & FRESH) == 0;
+  }
+
+  /**
+   * Consumer only: returns the latest published frame, or null if nothing new was published since
+   * the last call. The frame belongs to the consumer until its next call.
+   */
+  @SuppressWarnings("unchecked")
+  public F take() {
+    if ((state.get() & FRESH) == 0) {
+      return null;
+    }
+    // Only the consumer clears FRESH, so the middle slot is still fresh here.
+    final int previous = state.getAndSet(front);
+    front = previous & INDEX_MASK;
+    return (F) slots[front];
+  }
+}
@@ -0,0 +1,253 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs each frame through a sequence of stages, each on its own thread, so that different frames
+ * occupy different stages at the same time.
+ *
+ * <p>Frames live in a fixed set of preallocated slots, typically three: one being filled by the
+ * producer, one in the slowest stage, and one moving through the rest. The producer takes a free
+ * slot with {@link #obtain}, which never blocks and returns null when every slot is in flight, and
+ * hands it to the first stage with {@link #submit}. A slot returns to the free set after the last
+ * stage, or as soon as a stage drops its frame.
+ *
+ * <p>By default a stage holds one waiting frame. A stage that finishes a frame while the next stage
+ * still has one waiting replaces the waiting frame, which is dropped. Frames therefore never queue
+ * up behind a slow stage: it always starts on the newest frame available, and throughput approaches
+ * one frame per run of the slowest stage, instead of one per run of all stages in turn. Stages
+ * after the expensive one should be added with {@link Policy#KEEP_ALL}, so a frame is never thrown
+ * away once that work has been spent on it; the slots bound how many can wait.
+ *
+ * <p>Each stage's processing time is tracked as a moving average for {@link #getStatString}.
+ */
+public class FramePipeline<F> {
+  private static final Logger LOGGER = new Logger();
+
+  // Weight of the newest sample in each stage's moving average.
+  private static final float TIME_SMOOTHING = 0.1f;
+
+  /** One step of the pipeline, always called on that stage's thread. */
+  public interface Stage<F> {
+    /** Processes frame in place; returns false to drop it instead of passing it on. */
+    boolean process(F frame);
+  }
+
+  /** What happens to a frame that reaches a stage while another is already waiting for it. */
+  public enum Policy {
+    /** The waiting frame is dropped, so the stage always starts on the newest frame. */
+    KEEP_LATEST,
+    /** Both wait, and the stage takes them in order. */
+    KEEP_ALL
+  }
+
+  /** The frames waiting for one stage. */
+  private static final class Inbox<F> {
+    private final Policy policy;
+    private final ArrayDeque<F> frames = new ArrayDeque<F>();
+
+    Inbox(final Policy policy) {
+      this.policy = policy;
+    }
+
+    /** Stores frame, returning a frame it displaced, or null. */
+    synchronized F put(final F frame) {
+      final F displaced = policy == Policy.KEEP_LATEST ? frames.poll() : null;
+      frames.add(frame);
+      notifyAll();
+      return displaced;
+    }
+
+    synchronized F take() throws InterruptedException {
+      while (frames.isEmpty()) {
+        wait();
+      }
+      return frames.poll();
+    }
+
+    synchronized F poll() {
+      return frames.poll();
+    }
+  }
+
+  private final class Runner extends Thread {
+    final Stage<F> stage;
+    final Inbox<F> input;
+    Runner next;
+
+    volatile float averageMs;
+    volatile int numFrames;
+
+    Runner(final String name, final Stage<F> stage, final Policy policy) {
+      super(name);
+      this.stage = stage;
+      this.input = new Inbox<F>(policy);
+    }
+
+    @Override
+    public void run() {
+      while (!closed) {
+        final F frame;
+        try {
+          frame = input.take();
+        } catch (final InterruptedException e) {
+          return;
+        }
+
+        final long startNs = System.nanoTime();
+        boolean passOn;
+        try {
+          passOn = stage.process(frame);
+        } catch (final RuntimeException e) {
+          LOGGER.e(e, "Stage %s failed", getName());
+          passOn = false;
+        }
+        final float elapsedMs = (System.nanoTime() - startNs) / 1e6f;
+        averageMs =
+            numFrames == 0
+                ? elapsedMs
+                : averageMs + TIME_SMOOTHING * (elapsedMs - averageMs);
+        ++numFrames;
+
+        if (passOn && next != null) {
+          final F displaced = next.input.put(frame);
+          if (displaced != null) {
+            numDropped.incrementAndGet();
+            recycle(displaced);
+          }
+        } else {
+          recycle(frame);
+        }
+      }
+    }
+  }
+
+  private final ArrayBlockingQueue<F> freeSlots;
+  private final List<Runner> runners = new ArrayList<Runner>();
+  private volatile boolean closed;
+  private volatile boolean started;
+  private final AtomicInteger numDropped = new AtomicInteger();
+
+  /** @param slots The frames to cycle through the pipeline; at least two for any overlap. */
+  public FramePipeline(final List<F> slots) {
+    freeSlots = new ArrayBlockingQueue<F>(slots.size(), false, slots);
+  }
+
+  /** Appends a stage that keeps only the newest waiting frame; see {@link Policy#KEEP_LATEST}. */
+  public FramePipeline<F> addStage(final String name, final Stage<F> stage) {
+    return addStage(name, stage, Policy.KEEP_LATEST);
+  }
+
+  /**
+   * Appends a stage running on a new thread named name, whose waiting frames are handled by
+   * policy. Stages must be added before start.
+   */
+  public FramePipeline<F> addStage(final String name, final Stage<F> stage, final Policy policy) {
+    if (started) {
+      throw new IllegalStateException("Pipeline already started.");
+    }
+    final Runner runner = new Runner(name, stage, policy);
+    if (!runners.isEmpty()) {
+      runners.get(runners.size() - 1).next = runner;
+    }
+    runners.add(runner);
+    return this;
+  }
+
+  public void start() {
+    if (runners.isEmpty()) {
+      throw new IllegalStateException("Pipeline has no stages.");
+    }
+    started = true;
+    for (final Runner runner : runners) {
+      runner.start();
+    }
+  }
+
+  /** Returns a free slot to fill, or null without blocking if every slot is in flight. */
+  public F obtain() {
+    return closed ? null : freeSlots.poll();
+  }
+
+  /** Hands an obtained and filled slot to the first stage. */
+  public void submit(final F frame) {
+    final F displaced = runners.get(0).input.put(frame);
+    if (displaced != null) {
+      numDropped.incrementAndGet();
+      recycle(displaced);
+    }
+  }
+
+  /** Returns an obtained slot without submitting it. */
+  public void recycle(final F frame) {
+    freeSlots.offer(frame);
+  }
+
+  public int getStageCount() {
+    return runners.size();
+  }
+
+  public String getStageName(final int stage) {
+    return runners.get(stage).getName();
+  }
+
+  /** The moving average of the stage's processing time, excluding time spent waiting for input. */
+  public float getStageTimeMs(final int stage) {
+    return runners.get(stage).averageMs;
+  }
+
+  /** The number of frames replaced before the next stage could take them. */
+  public int getDroppedCount() {
+    return numDropped.get();
+  }
+
+  public String getStatString() {
+    final StringBuilder sb = new StringBuilder();
+    for (final Runner runner : runners) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(String.format("%s %.1fms", runner.getName(), runner.averageMs));
+    }
+    return sb.toString();
+  }
+
+  /** Stops every stage, waiting for frames being processed to finish. */
+  public void close() {
+    closed = true;
+    for (final Runner runner : runners) {
+      runner.interrupt();
+    }
+    for (final Runner runner : runners) {
+      try {
+        runner.join();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      F pending;
+      while ((pending = runner.input.poll()) != null) {
+        recycle(pending);
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+/**
+ * Crops, rotates and resamples ARGB frames through a source-index lookup table.
+ *
+ * <p>The geometry is the same as {@link ImageUtils#getTransformationMatrix}, but instead of
+ * applying a Matrix through a Canvas on every frame, the source pixel(s) feeding each destination
+ * pixel are computed once at construction. Each frame is then a single pass of table lookups, with
+ * no allocation and no dependency on the Android graphics stack, so this class also runs on a
+ * desktop JVM.
+ */
+public class FrameResampler {
+  /** How destination pixels are sampled from the source frame. */
+  public enum Mode {
+    /** The source pixel under the destination pixel center, as Canvas does without filtering. */
+    NEAREST,
+    /** Fixed-point bilinear interpolation of the four surrounding source pixels. */
+    BILINEAR
+  }
+
+  // Bilinear weights are in units of 1 / 2^FRACTION_BITS.
+  private static final int FRACTION_BITS = 8;
+  private static final int ONE = 1 << FRACTION_BITS;
+  // Half a level in both 16-bit lanes, added before shifting so that results round.
+  private static final int ROUNDING = ((ONE / 2) << 16) | (ONE / 2);
+
+  private final int srcWidth;
+  private final int srcHeight;
+  private final int dstWidth;
+  private final int dstHeight;
+  private final Mode mode;
+
+  // Source index per destination pixel; for BILINEAR the top-left of the 2x2 neighbourhood.
+  private final int[] srcIndex;
+
+  // For BILINEAR only: (xWeight << 16) | yWeight of the right and bottom neighbours.
+  private final int[] weights;
+
+  // Index offsets from the top-left to the right and bottom neighbours.
+  private final int xStep;
+  private final int yStep;
+
+  /**
+   * @param srcWidth Width of the source frame.
+   * @param srcHeight Height of the source frame.
+   * @param dstWidth Width of the destination frame.
+   * @param dstHeight Height of the destination frame.
+   * @param applyRotation Amount of rotation to apply from one frame to another, in degrees.
+   * @param maintainAspectRatio If true, will ensure that scaling in x and y remains constant,
+   *     cropping the image if necessary.
+   * @param mode How destination pixels are sampled.
+   */
+  public FrameResampler(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio,
+      final Mode mode) {
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+    this.mode = mode;
+
+    final float[] dstToSrc =
+        getInverseTransform(
+            srcWidth, srcHeight, dstWidth, dstHeight, applyRotation, maintainAspectRatio);
+
+    xStep = srcWidth > 1 ? 1 : 0;
+    yStep = srcHeight > 1 ? srcWidth : 0;
+
+    final int numPixels = dstWidth * dstHeight;
+    srcIndex = new int[numPixels];
+    weights = mode == Mode.BILINEAR ? new int[numPixels] : null;
+
+    final int maxX0 = srcWidth - 1 - xStep;
+    final int maxY0 = srcHeight - (yStep != 0 ? 2 : 1);
+
+    int i = 0;
+    for (int y = 0; y < dstHeight; ++y) {
+      for (int x = 0; x < dstWidth; ++x, ++i) {
+        // Map destination pixel centers into the source frame.
+        final float cx = x + 0.5f;
+        final float cy = y + 0.5f;
+        final float sx = dstToSrc[0] * cx + dstToSrc[1] * cy + dstToSrc[2];
+        final float sy = dstToSrc[3] * cx + dstToSrc[4] * cy + dstToSrc[5];
+
+        if (mode == Mode.NEAREST) {
+          srcIndex[i] =
+              clamp((int) Math.floor(sy), 0, srcHeight - 1) * srcWidth
+                  + clamp((int) Math.floor(sx), 0, srcWidth - 1);
+        } else {
+          // Interpolate between source pixel centers, clamping at the frame edges. The top-left
+          // neighbour is kept one pixel in from the right and bottom edges so that all four reads
+          // stay in bounds; the weight then moves entirely onto the edge pixel.
+          final float px = clamp(sx - 0.5f, 0, srcWidth - 1);
+          final float py = clamp(sy - 0.5f, 0, srcHeight - 1);
+          final int x0 = Math.min((int) px, maxX0);
+          final int y0 = Math.min((int) py, maxY0);
+          final int wx = Math.round((px - x0) * ONE);
+          final int wy = Math.round((py - y0) * ONE);
+          srcIndex[i] = y0 * srcWidth + x0;
+          weights[i] = (wx << 16) | wy;
+        }
+      }
+    }
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public int getSrcWidth() {
+    return srcWidth;
+  }
+
+  public int getSrcHeight() {
+    return srcHeight;
+  }
+
+  public int getDstWidth() {
+    return dstWidth;
+  }
+
+  public int getDstHeight() {
+    return dstHeight;
+  }
+
+  /**
+   * Resamples a srcWidth x srcHeight ARGB frame into a dstWidth x dstHeight ARGB frame. Both
+   * arrays are row-major with no padding.
+   */
+  public void resample(final int[] src, final int[] dst) {
+    final int[] index = srcIndex;
+    final int numPixels = index.length;
+    if (mode == Mode.NEAREST) {
+      for (int i = 0; i < numPixels; ++i) {
+        dst[i] = src[index[i]];
+      }
+      return;
+    }
+
+    final int[] w = weights;
+    final int dx = xStep;
+    final int dy = yStep;
+    for (int i = 0; i < numPixels; ++i) {
+      final int p = index[i];
+      final int wx = w[i] >>> 16;
+      final int wy = w[i] & 0xFFFF;
+      final int top = lerp(src[p], src[p + dx], wx);
+      final int bottom = lerp(src[p + dy], src[p + dy + dx], wx);
+      dst[i] = lerp(top, bottom, wy);
+    }
+  }
+
+  /**
+   * Returns the source index sampled by each destination pixel in {@link Mode#NEAREST} mode, or
+   * the top-left of its neighbourhood in {@link Mode#BILINEAR} mode. Shared, not copied.
+   */
+  int[] getSourceIndices() {
+    return srcIndex;
+  }
+
+  /**
+   * Interpolates all four 8-bit channels of a and b at once, two channels per 32-bit lane, rounding
+   * to the nearest level. The weight of b is in [0, ONE], so each 16-bit lane holds at most
+   * 255 * ONE plus the rounding half and cannot overflow into its neighbour.
+   */
+  private static int lerp(final int a, final int b, final int weightB) {
+    final int weightA = ONE - weightB;
+    final int rb =
+        (((a & 0x00FF00FF) * weightA + (b & 0x00FF00FF) * weightB + ROUNDING) >>> FRACTION_BITS)
+            & 0x00FF00FF;
+    final int ag =
+        ((((a >>> 8) & 0x00FF00FF) * weightA + ((b >>> 8) & 0x00FF00FF) * weightB + ROUNDING)
+                >>> FRACTION_BITS)
+            & 0x00FF00FF;
+    return (ag << 8) | rb;
+  }
+
+  /**
+   * Returns the destination-to-source affine transform, as {a, b, c, d, e, f} mapping (x, y) to
+   * (ax + by + c, dx + ey + f), of the matrix built by {@link ImageUtils#getTransformationMatrix}.
+   */
+  static float[] getInverseTransform(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
+    final int inWidth = transpose ? srcHeight : srcWidth;
+    final int inHeight = transpose ? srcWidth : srcHeight;
+
+    float scaleX = 1.0f;
+    float scaleY = 1.0f;
+    if (inWidth != dstWidth || inHeight != dstHeight) {
+      scaleX = dstWidth / (float) inWidth;
+      scaleY = dstHeight / (float) inHeight;
+      if (maintainAspectRatio) {
+        scaleX = scaleY = Math.max(scaleX, scaleY);
+      }
+    }
+
+    if (applyRotation == 0) {
+      return new float[] {1.0f / scaleX, 0.0f, 0.0f, 0.0f, 1.0f / scaleY, 0.0f};
+    }
+
+    // Forward: dst = scale(rotate(src - srcCenter)) + dstCenter. Quarter turns are snapped to
+    // exact values so that rows and columns map onto whole source pixels.
+    final double radians = Math.toRadians(applyRotation);
+    final float cos = snap(Math.cos(radians));
+    final float sin = snap(Math.sin(radians));
+
+    // Inverse: src = rotate^-1(scale^-1(dst - dstCenter)) + srcCenter.
+    final float a = cos / scaleX;
+    final float b = sin / scaleY;
+    final float d = -sin / scaleX;
+    final float e = cos / scaleY;
+    final float dcx = dstWidth / 2.0f;
+    final float dcy = dstHeight / 2.0f;
+    return new float[] {
+      a, b, srcWidth / 2.0f - a * dcx - b * dcy, d, e, srcHeight / 2.0f - d * dcx - e * dcy
+    };
+  }
+
+  private static float snap(final double value) {
+    final double rounded = Math.rint(value);
+    return (float) (Math.abs(value - rounded) < 1e-6 ? rounded : value);
+  }
+
+  private static int clamp(final int value, final int min, final int max) {
+    return value < min ? min : (value > max ? max : value);
+  }
+
+  private static float clamp(final float value, final float min, final float max) {
+    return value < min ? min : (value > max ? max : value);
+  }
+}
@@ -0,0 +1,199 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import java.util.Arrays;
+
+/**
+ * Decides from the luminance plane whether a camera frame differs enough from the last analyzed
+ * one to be worth running the model on.
+ *
+ * <p>Each frame is read on a sparse sampling grid, so the cost of a frame is bounded by the sample
+ * budget regardless of the preview size. Every sample is compared with the same sample of the
+ * reference frame, the last frame the gate let through, and the absolute differences are summed
+ * per block. A block has changed when that sum exceeds the block threshold times its sample count,
+ * so texture moving inside a block counts even when the block's mean brightness stays the same.
+ * Comparing against the reference rather than the previous frame lets slow changes accumulate
+ * until they count. A frame passes when the fraction of changed blocks reaches the motion
+ * threshold, or when nothing has passed for the maximum staleness.
+ *
+ * <p>Not thread-safe; call from the thread that receives frames.
+ */
+public class MotionGate {
+  private final int width;
+  private final int height;
+  private final int blockSize;
+  private final int sampleStep;
+  private final int blocksX;
+  private final float motionThreshold;
+  private final long maxStalenessMs;
+
+  // The sampled luminance of the current and reference frames, one byte per sample in grid order.
+  private byte[] samples;
+  private byte[] referenceSamples;
+  // Per-block sums of absolute differences from the reference, and the sum at which each block
+  // counts as changed (its sample count times the per-sample threshold).
+  private final int[] differences;
+  private final int[] changeThresholds;
+  private final int numSampledBlocks;
+
+  private boolean hasReference;
+  private long lastPassMs;
+  private float lastMotion;
+  private int numFrames;
+  private int numSkipped;
+
+  /**
+   * @param width Width of the luminance plane in pixels.
+   * @param height Height of the luminance plane in pixels.
+   * @param blockSize Side of the square blocks compared between frames, in pixels.
+   * @param maxSamples Upper bound on the pixels read per frame; the plane is sampled on a regular
+   *     grid sparse enough to stay within it.
+   * @param blockThreshold Mean absolute change of a block's samples, in 0-255 levels, above which
+   *     the block counts as changed.
+   * @param motionThreshold Fraction of changed blocks, in [0, 1], at which a frame passes.
+   * @param maxStalenessMs A frame always passes if none has for this long.
+   */
+  public MotionGate(
+      final int width,
+      final int height,
+      final int blockSize,
+      final int maxSamples,
+      final float blockThreshold,
+      final float motionThreshold,
+      final long maxStalenessMs) {
+    if (blockSize < 1 || maxSamples < 1) {
+      throw new IllegalArgumentException(
+          "blockSize and maxSamples must be positive: " + blockSize + ", " + maxSamples);
+    }
+    this.width = width;
+    this.height = height;
+    this.blockSize = blockSize;
+    this.sampleStep =
+        Math.max(1, (int) Math.ceil(Math.sqrt((double) width * height / maxSamples)));
+    this.blocksX = (width + blockSize - 1) / blockSize;
+    final int blocksY = (height + blockSize - 1) / blockSize;
+    this.motionThreshold = motionThreshold;
+    this.maxStalenessMs = maxStalenessMs;
+
+    differences = new int[blocksX * blocksY];
+
+    // Edge blocks, and blocks smaller than the sample step, hold fewer samples.
+    final int[] counts = new int[blocksX * blocksY];
+    int numSamples = 0;
+    for (int y = 0; y < height; y += sampleStep) {
+      final int row = (y / blockSize) * blocksX;
+      for (int x = 0; x < width; x += sampleStep) {
+        ++counts[row + x / blockSize];
+        ++numSamples;
+      }
+    }
+    samples = new byte[numSamples];
+    referenceSamples = new byte[numSamples];
+    changeThresholds = new int[counts.length];
+    int sampledBlocks = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      // Blocks without samples can never count as changed, and do not count towards the fraction.
+      if (counts[i] > 0) {
+        changeThresholds[i] = (int) (blockThreshold * counts[i]);
+        ++sampledBlocks;
+      } else {
+        changeThresholds[i] = Integer.MAX_VALUE;
+      }
+    }
+    numSampledBlocks = Math.max(1, sampledBlocks);
+  }
+
+  /**
+   * Samples the luminance plane of a frame and returns whether the model should run on it. A
+   * frame that passes becomes the new reference.
+   *
+   * @param luminance The Y plane, at least rowStride * height bytes.
+   * @param rowStride Bytes between the starts of consecutive rows.
+   * @param timestampMs Frame time, for the staleness limit.
+   */
+  public boolean shouldRun(final byte[] luminance, final int rowStride, final long timestampMs) {
+    ++numFrames;
+    sample(luminance, rowStride);
+
+    lastMotion = hasReference ? changedFraction() : 1.0f;
+    if (hasReference
+        && lastMotion < motionThreshold
+        && timestampMs - lastPassMs < maxStalenessMs) {
+      ++numSkipped;
+      return false;
+    }
+
+    final byte[] swap = referenceSamples;
+    referenceSamples = samples;
+    samples = swap;
+    hasReference = true;
+    lastPassMs = timestampMs;
+    return true;
+  }
+
+  /** Forgets the reference frame, so the next frame passes. */
+  public void reset() {
+    hasReference = false;
+  }
+
+  /** The fraction of changed blocks in the most recent frame. */
+  public float getLastMotion() {
+    return lastMotion;
+  }
+
+  /** The fraction of all frames seen so far that were skipped. */
+  public float getSkippedFraction() {
+    return numFrames > 0 ? (float) numSkipped / numFrames : 0.0f;
+  }
+
+  public int getFrameCount() {
+    return numFrames;
+  }
+
+  public int getSkippedCount() {
+    return numSkipped;
+  }
+
+  /** Reads the grid into samples, summing each block's absolute differences from the reference. */
+  private void sample(final byte[] luminance, final int rowStride) {
+    final byte[] current = samples;
+    final byte[] reference = referenceSamples;
+    final int[] blockDifferences = differences;
+    Arrays.fill(blockDifferences, 0);
+    int i = 0;
+    for (int y = 0; y < height; y += sampleStep) {
+      final int row = (y / blockSize) * blocksX;
+      final int offset = y * rowStride;
+      for (int x = 0; x < width; x += sampleStep) {
+        final byte value = luminance[offset + x];
+        current[i] = value;
+        blockDifferences[row + x / blockSize] += Math.abs((value & 0xFF) - (reference[i] & 0xFF));
+        ++i;
+      }
+    }
+  }
+
+  private float changedFraction() {
+    int numChanged = 0;
+    for (int i = 0; i < differences.length; ++i) {
+      if (differences[i] > changeThresholds[i]) {
+        ++numChanged;
+      }
+    }
+    return (float) numChanged / numSampledBlocks;
+  }
+}
@@ -0,0 +1,330 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import java.util.Arrays;
+
+/**
+ * Non-maximum suppression over boxes held in primitive arrays.
+ *
+ * <p>Boxes are bucketed into a uniform grid over their combined extent, so each box is only
+ * compared against boxes sharing a grid cell with it rather than against every other box. Boxes
+ * are given as consecutive (left, top, right, bottom) quadruples.
+ *
+ * <p>Instances reuse their working buffers between calls and are not thread-safe.
+ */
+public class NonMaxSuppression {
+  /** How overlapping lower-scoring boxes are treated. */
+  public enum Method {
+    /** Overlapping boxes above the IoU threshold are discarded. */
+    HARD,
+    /** Overlapping boxes have their scores decayed by (1 - IoU) above the IoU threshold. */
+    SOFT_LINEAR,
+    /** Overlapping boxes have their scores decayed by exp(-IoU^2 / sigma). */
+    SOFT_GAUSSIAN
+  }
+
+  private final Method method;
+  private final float iouThreshold;
+  private final float scoreThreshold;
+  private final float sigma;
+  private final boolean classAgnostic;
+  private final int gridSize;
+
+  // Candidate order by descending score, for HARD.
+  private int[] order = new int[0];
+  private long[] sortKeys = new long[0];
+
+  // Per-box state: whether still a candidate, and the last query that visited it.
+  private boolean[] alive = new boolean[0];
+  private int[] visitStamp = new int[0];
+  private int stamp;
+
+  // Grid cells as singly linked lists: cellHead[cell] -> entryNext[entry] -> ..., -1 terminated.
+  private int[] cellHead = new int[0];
+  private int[] entryNext = new int[0];
+  private int[] entryBox = new int[0];
+  private int numEntries;
+
+  // Grid geometry for the current call.
+  private float originX;
+  private float originY;
+  private float cellWidth;
+  private float cellHeight;
+
+  /**
+   * @param method Hard or soft suppression.
+   * @param iouThreshold Overlap above which a lower-scoring box is suppressed (HARD) or decayed
+   *     (SOFT_LINEAR). SOFT_GAUSSIAN decays every overlapping box.
+   * @param scoreThreshold Boxes scoring at or below this, initially or after decay, are dropped.
+   * @param sigma Width of the SOFT_GAUSSIAN decay; ignored by the other methods.
+   * @param classAgnostic If true, boxes suppress each other regardless of class.
+   * @param gridSize Number of grid cells along each side of the boxes' combined extent.
+   */
+  public NonMaxSuppression(
+      final Method method,
+      final float iouThreshold,
+      final float scoreThreshold,
+      final float sigma,
+      final boolean classAgnostic,
+      final int gridSize) {
+    if (gridSize < 1) {
+      throw new IllegalArgumentException("gridSize must be positive: " + gridSize);
+    }
+    this.method = method;
+    this.iouThreshold = iouThreshold;
+    this.scoreThreshold = scoreThreshold;
+    this.sigma = sigma;
+    this.classAgnostic = classAgnostic;
+    this.gridSize = gridSize;
+  }
+
+  /**
+   * Suppresses overlapping boxes among the first count entries.
+   *
+   * @param boxes 4 * count box coordinates.
+   * @param scores count scores. Soft methods overwrite these with the decayed scores.
+   * @param classes count class indices, or null if all boxes share one class.
+   * @param count Number of boxes.
+   * @param keep Receives the indices of the surviving boxes, by descending final score.
+   * @return The number of indices written to keep, at most keep.length.
+   */
+  public int run(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int count,
+      final int[] keep) {
+    if (count == 0 || keep.length == 0) {
+      return 0;
+    }
+    ensureCapacity(count);
+    setUpGrid(boxes, count);
+
+    return method == Method.HARD
+        ? runHard(boxes, scores, classes, count, keep)
+        : runSoft(boxes, scores, classes, count, keep);
+  }
+
+  private int runHard(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int count,
+      final int[] keep) {
+    // Sort by descending score, ties by ascending index. Non-negative float bits order like the
+    // floats themselves, so the score and inverted index are packed into one long and sorted as
+    // primitives.
+    int numCandidates = 0;
+    for (int i = 0; i < count; ++i) {
+      if (scores[i] > scoreThreshold) {
+        sortKeys[numCandidates++] =
+            ((long) Float.floatToIntBits(Math.max(scores[i], 0.0f)) << 32)
+                | (Integer.MAX_VALUE - i);
+      }
+    }
+    Arrays.sort(sortKeys, 0, numCandidates);
+    for (int i = 0; i < numCandidates; ++i) {
+      order[i] = Integer.MAX_VALUE - (int) sortKeys[numCandidates - 1 - i];
+    }
+
+    // Greedily keep boxes that do not overlap an already kept one. Only kept boxes enter the grid.
+    int numKept = 0;
+    for (int i = 0; i < numCandidates && numKept < keep.length; ++i) {
+      final int box = order[i];
+      if (!overlapsKept(boxes, classes, box)) {
+        keep[numKept++] = box;
+        insert(boxes, box);
+      }
+    }
+    return numKept;
+  }
+
+  private boolean overlapsKept(final float[] boxes, final int[] classes, final int box) {
+    ++stamp;
+    final int cellX0 = cellX(boxes[4 * box]);
+    final int cellX1 = cellX(boxes[4 * box + 2]);
+    final int cellY0 = cellY(boxes[4 * box + 1]);
+    final int cellY1 = cellY(boxes[4 * box + 3]);
+    for (int cy = cellY0; cy <= cellY1; ++cy) {
+      for (int cx = cellX0; cx <= cellX1; ++cx) {
+        for (int e = cellHead[cy * gridSize + cx]; e >= 0; e = entryNext[e]) {
+          final int other = entryBox[e];
+          if (visitStamp[other] == stamp) {
+            continue;
+          }
+          visitStamp[other] = stamp;
+          if (sameClass(classes, box, other) && iou(boxes, box, other) > iouThreshold) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private int runSoft(
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int count,
+      final int[] keep) {
+    // Every live candidate enters the grid, so each pick only decays its neighbours.
+    int numAlive = 0;
+    for (int i = 0; i < count; ++i) {
+      alive[i] = scores[i] > scoreThreshold;
+      if (alive[i]) {
+        insert(boxes, i);
+        ++numAlive;
+      }
+    }
+
+    int numKept = 0;
+    while (numAlive > 0 && numKept < keep.length) {
+      // Scores change after every pick, so the next best is found by a scan.
+      int best = -1;
+      for (int i = 0; i < count; ++i) {
+        if (alive[i] && (best < 0 || scores[i] > scores[best])) {
+          best = i;
+        }
+      }
+      alive[best] = false;
+      --numAlive;
+      keep[numKept++] = best;
+      numAlive -= decayNeighbours(boxes, scores, classes, best);
+    }
+    return numKept;
+  }
+
+  /** Decays the live boxes overlapping box, returning how many dropped below the threshold. */
+  private int decayNeighbours(
+      final float[] boxes, final float[] scores, final int[] classes, final int box) {
+    ++stamp;
+    int numDropped = 0;
+    final int cellX0 = cellX(boxes[4 * box]);
+    final int cellX1 = cellX(boxes[4 * box + 2]);
+    final int cellY0 = cellY(boxes[4 * box + 1]);
+    final int cellY1 = cellY(boxes[4 * box + 3]);
+    for (int cy = cellY0; cy <= cellY1; ++cy) {
+      for (int cx = cellX0; cx <= cellX1; ++cx) {
+        for (int e = cellHead[cy * gridSize + cx]; e >= 0; e = entryNext[e]) {
+          final int other = entryBox[e];
+          if (!alive[other] || visitStamp[other] == stamp) {
+            continue;
+          }
+          visitStamp[other] = stamp;
+          if (!sameClass(classes, box, other)) {
+            continue;
+          }
+          final float iou = iou(boxes, box, other);
+          if (method == Method.SOFT_LINEAR) {
+            if (iou > iouThreshold) {
+              scores[other] *= 1.0f - iou;
+            }
+          } else if (iou > 0.0f) {
+            scores[other] *= (float) Math.exp(-iou * iou / sigma);
+          }
+          if (scores[other] <= scoreThreshold) {
+            alive[other] = false;
+            ++numDropped;
+          }
+        }
+      }
+    }
+    return numDropped;
+  }
+
+  private boolean sameClass(final int[] classes, final int a, final int b) {
+    return classAgnostic || classes == null || classes[a] == classes[b];
+  }
+
+  private static float iou(final float[] boxes, final int a, final int b) {
+    final float left = Math.max(boxes[4 * a], boxes[4 * b]);
+    final float top = Math.max(boxes[4 * a + 1], boxes[4 * b + 1]);
+    final float right = Math.min(boxes[4 * a + 2], boxes[4 * b + 2]);
+    final float bottom = Math.min(boxes[4 * a + 3], boxes[4 * b + 3]);
+    if (right <= left || bottom <= top) {
+      return 0.0f;
+    }
+    final float intersection = (right - left) * (bottom - top);
+    final float areaA = (boxes[4 * a + 2] - boxes[4 * a]) * (boxes[4 * a + 3] - boxes[4 * a + 1]);
+    final float areaB = (boxes[4 * b + 2] - boxes[4 * b]) * (boxes[4 * b + 3] - boxes[4 * b + 1]);
+    return intersection / (areaA + areaB - intersection);
+  }
+
+  private void setUpGrid(final float[] boxes, final int count) {
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < count; ++i) {
+      minX = Math.min(minX, boxes[4 * i]);
+      minY = Math.min(minY, boxes[4 * i + 1]);
+      maxX = Math.max(maxX, boxes[4 * i + 2]);
+      maxY = Math.max(maxY, boxes[4 * i + 3]);
+    }
+    originX = minX;
+    originY = minY;
+    cellWidth = Math.max((maxX - minX) / gridSize, Float.MIN_NORMAL);
+    cellHeight = Math.max((maxY - minY) / gridSize, Float.MIN_NORMAL);
+
+    Arrays.fill(cellHead, -1);
+    numEntries = 0;
+  }
+
+  private int cellX(final float x) {
+    final int cell = (int) ((x - originX) / cellWidth);
+    return cell < 0 ? 0 : (cell >= gridSize ? gridSize - 1 : cell);
+  }
+
+  private int cellY(final float y) {
+    final int cell = (int) ((y - originY) / cellHeight);
+    return cell < 0 ? 0 : (cell >= gridSize ? gridSize - 1 : cell);
+  }
+
+  /** Adds box to every grid cell it covers. */
+  private void insert(final float[] boxes, final int box) {
+    final int cellX0 = cellX(boxes[4 * box]);
+    final int cellX1 = cellX(boxes[4 * box + 2]);
+    final int cellY0 = cellY(boxes[4 * box + 1]);
+    final int cellY1 = cellY(boxes[4 * box + 3]);
+    for (int cy = cellY0; cy <= cellY1; ++cy) {
+      for (int cx = cellX0; cx <= cellX1; ++cx) {
+        if (numEntries == entryBox.length) {
+          entryBox = Arrays.copyOf(entryBox, Math.max(16, numEntries * 2));
+          entryNext = Arrays.copyOf(entryNext, entryBox.length);
+        }
+        final int cell = cy * gridSize + cx;
+        entryBox[numEntries] = box;
+        entryNext[numEntries] = cellHead[cell];
+        cellHead[cell] = numEntries++;
+      }
+    }
+  }
+
+  private void ensureCapacity(final int count) {
+    if (cellHead.length != gridSize * gridSize) {
+      cellHead = new int[gridSize * gridSize];
+    }
+    if (alive.length < count) {
+      order = new int[count];
+      sortKeys = new long[count];
+      alive = new boolean[count];
+      visitStamp = new int[count];
+      stamp = 0;
+    }
+  }
+}
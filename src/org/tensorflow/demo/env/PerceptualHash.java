@@ -0,0 +1,100 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+/**
+ * 64-bit difference hash (dHash) of an image, for spotting near-identical frames.
+ *
+ * <p>The image is reduced to a 9x8 grid of block brightness sums, and each bit records whether a
+ * block is brighter than its right-hand neighbour. Small changes in noise, exposure or
+ * compression flip few bits, so the Hamming distance between two hashes measures how different
+ * the images look. Each method makes one pass over the pixels.
+ *
+ * <p>Brightness is the plain sum of the three channels. Normalizing with one mean and std for all
+ * channels shifts and scales every block mean alike, so such input hashes like the raw pixels.
+ */
+public final class PerceptualHash {
+  private static final int GRID_WIDTH = 9;
+  private static final int GRID_HEIGHT = 8;
+
+  private PerceptualHash() {}
+
+  /** Hashes width x height ARGB pixels. */
+  public static long dHash(final int[] argb, final int width, final int height) {
+    final float[] sums = new float[GRID_WIDTH * GRID_HEIGHT];
+    for (int y = 0; y < height; ++y) {
+      final int row = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+      for (int x = 0; x < width; ++x) {
+        final int p = argb[y * width + x];
+        sums[row + x * GRID_WIDTH / width] +=
+            ((p >> 16) & 0xFF) + ((p >> 8) & 0xFF) + (p & 0xFF);
+      }
+    }
+    return pack(sums, width);
+  }
+
+  /** Hashes width x height pixels of normalized model input in [H, W, C] order. */
+  public static long dHash(final float[] hwc, final int width, final int height) {
+    final float[] sums = new float[GRID_WIDTH * GRID_HEIGHT];
+    for (int y = 0; y < height; ++y) {
+      final int row = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+      for (int x = 0, i = y * width * 3; x < width; ++x, i += 3) {
+        sums[row + x * GRID_WIDTH / width] += hwc[i] + hwc[i + 1] + hwc[i + 2];
+      }
+    }
+    return pack(sums, width);
+  }
+
+  /** Hashes width x height pixels of raw uint8 model input in [H, W, C] order. */
+  public static long dHash(final byte[] hwc, final int width, final int height) {
+    final float[] sums = new float[GRID_WIDTH * GRID_HEIGHT];
+    for (int y = 0; y < height; ++y) {
+      final int row = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+      for (int x = 0, i = y * width * 3; x < width; ++x, i += 3) {
+        sums[row + x * GRID_WIDTH / width] +=
+            (hwc[i] & 0xFF) + (hwc[i + 1] & 0xFF) + (hwc[i + 2] & 0xFF);
+      }
+    }
+    return pack(sums, width);
+  }
+
+  /** The number of differing bits between two hashes, from 0 (alike) to 64. */
+  public static int distance(final long a, final long b) {
+    return Long.bitCount(a ^ b);
+  }
+
+  private static long pack(final float[] sums, final int width) {
+    // Blocks in a row can differ in width by a pixel, so neighbours are compared by their means.
+    final float[] columnScale = new float[GRID_WIDTH];
+    for (int x = 0; x < GRID_WIDTH; ++x) {
+      final int start = (x * width + GRID_WIDTH - 1) / GRID_WIDTH;
+      final int end = ((x + 1) * width + GRID_WIDTH - 1) / GRID_WIDTH;
+      columnScale[x] = end > start ? 1.0f / (end - start) : 0.0f;
+    }
+
+    long hash = 0;
+    for (int y = 0; y < GRID_HEIGHT; ++y) {
+      for (int x = 0; x < GRID_WIDTH - 1; ++x) {
+        hash <<= 1;
+        final int i = y * GRID_WIDTH + x;
+        if (sums[i] * columnScale[x] > sums[i + 1] * columnScale[x + 1]) {
+          hash |= 1;
+        }
+      }
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,249 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Converts packed ARGB pixels into the normalized float values a model expects.
+ *
+ * <p>The normalization is described by a {@link Spec} and compiled into one 256-entry lookup
+ * table per output channel, so the per-pixel work is three table lookups with no arithmetic.
+ */
+public final class Preprocessor {
+  /** Order in which the color channels are written for each pixel. */
+  public enum ChannelOrder {
+    RGB,
+    BGR
+  }
+
+  /**
+   * Declarative description of a model's input normalization. Each channel value v in [0, 255]
+   * becomes (v * scale - mean[c]) / std[c], where c indexes red, green and blue in that order
+   * regardless of the output channel order.
+   */
+  public static final class Spec {
+    public final ChannelOrder channelOrder;
+    private final float[] mean;
+    private final float[] std;
+    public final float scale;
+
+    public Spec(
+        final ChannelOrder channelOrder, final float[] mean, final float[] std, final float scale) {
+      if (mean.length != 3 || std.length != 3) {
+        throw new IllegalArgumentException("Expected one mean and std per RGB channel.");
+      }
+      this.channelOrder = channelOrder;
+      this.mean = mean.clone();
+      this.std = std.clone();
+      this.scale = scale;
+    }
+
+    /** A spec that applies the same mean and std to every channel. */
+    public static Spec uniform(
+        final ChannelOrder channelOrder, final float mean, final float std) {
+      return new Spec(
+          channelOrder, new float[] {mean, mean, mean}, new float[] {std, std, std}, 1.0f);
+    }
+
+    public float getMean(final int channel) {
+      return mean[channel];
+    }
+
+    public float getStd(final int channel) {
+      return std[channel];
+    }
+  }
+
+  private final Spec spec;
+
+  // Lookup tables for the first, second and third output channel.
+  private final float[] lut0 = new float[256];
+  private final float[] lut1 = new float[256];
+  private final float[] lut2 = new float[256];
+
+  // Bit offsets of the source components feeding the first and third output channel.
+  private final int shift0;
+  private final int shift2;
+
+  public Preprocessor(final Spec spec) {
+    this.spec = spec;
+
+    final boolean bgr = spec.channelOrder == ChannelOrder.BGR;
+    final int first = bgr ? 2 : 0;
+    final int last = bgr ? 0 : 2;
+    shift0 = bgr ? 0 : 16;
+    shift2 = bgr ? 16 : 0;
+
+    for (int v = 0; v < 256; ++v) {
+      final float scaled = v * spec.scale;
+      lut0[v] = (scaled - spec.mean[first]) / spec.std[first];
+      lut1[v] = (scaled - spec.mean[1]) / spec.std[1];
+      lut2[v] = (scaled - spec.mean[last]) / spec.std[last];
+    }
+  }
+
+  public Spec getSpec() {
+    return spec;
+  }
+
+  /** Normalizes all of pixels into output, which must hold 3 * pixels.length values. */
+  public void apply(final int[] pixels, final float[] output) {
+    apply(pixels, 0, pixels.length, output, 0);
+  }
+
+  /**
+   * Normalizes count pixels starting at offset into output starting at outputOffset. No
+   * allocation or bounds checking beyond the array accesses themselves is performed.
+   */
+  public void apply(
+      final int[] pixels,
+      final int offset,
+      final int count,
+      final float[] output,
+      final int outputOffset) {
+    final float[] l0 = lut0;
+    final float[] l1 = lut1;
+    final float[] l2 = lut2;
+    final int s0 = shift0;
+    final int s2 = shift2;
+
+    final int end = offset + count;
+    int i = offset;
+    int o = outputOffset;
+
+    // Unrolled by two pixels to halve the loop overhead in the hot path.
+    for (; i + 1 < end; i += 2, o += 6) {
+      final int p0 = pixels[i];
+      final int p1 = pixels[i + 1];
+      output[o] = l0[(p0 >> s0) & 0xFF];
+      output[o + 1] = l1[(p0 >> 8) & 0xFF];
+      output[o + 2] = l2[(p0 >> s2) & 0xFF];
+      output[o + 3] = l0[(p1 >> s0) & 0xFF];
+      output[o + 4] = l1[(p1 >> 8) & 0xFF];
+      output[o + 5] = l2[(p1 >> s2) & 0xFF];
+    }
+    if (i < end) {
+      final int p = pixels[i];
+      output[o] = l0[(p >> s0) & 0xFF];
+      output[o + 1] = l1[(p >> 8) & 0xFF];
+      output[o + 2] = l2[(p >> s2) & 0xFF];
+    }
+  }
+
+  /**
+   * Normalizes pixels copied out of an ARGB_8888 Bitmap with {@link
+   * android.graphics.Bitmap#copyPixelsToBuffer} into output, starting at absolute index 0 of
+   * both buffers. Such pixels are laid out as R, G, B, A bytes in memory, so the component offsets
+   * depend on the byte order of the pixel buffer. The pixels are premultiplied, so they are
+   * assumed to be opaque.
+   */
+  public void applyRgba(final IntBuffer pixels, final FloatBuffer output) {
+    final boolean littleEndian = pixels.order() == ByteOrder.LITTLE_ENDIAN;
+    final int redShift = littleEndian ? 0 : 24;
+    final int blueShift = littleEndian ? 16 : 8;
+    final int greenShift = littleEndian ? 8 : 16;
+    final boolean bgr = spec.channelOrder == ChannelOrder.BGR;
+    final int s0 = bgr ? blueShift : redShift;
+    final int s2 = bgr ? redShift : blueShift;
+
+    final float[] l0 = lut0;
+    final float[] l1 = lut1;
+    final float[] l2 = lut2;
+    final int count = pixels.limit();
+    for (int i = 0, o = 0; i < count; ++i, o += 3) {
+      final int p = pixels.get(i);
+      output.put(o, l0[(p >> s0) & 0xFF]);
+      output.put(o + 1, l1[(p >> greenShift) & 0xFF]);
+      output.put(o + 2, l2[(p >> s2) & 0xFF]);
+    }
+  }
+
+  /** Allocates a direct, native-order buffer for numPixels pixels of Bitmap data. */
+  public static IntBuffer allocatePixelBuffer(final int numPixels) {
+    return ByteBuffer.allocateDirect(numPixels * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+  }
+
+  /** Allocates a direct, native-order buffer for numPixels pixels of normalized RGB input. */
+  public static FloatBuffer allocateInputBuffer(final int numPixels) {
+    return ByteBuffer.allocateDirect(numPixels * 3 * 4)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+
+  /**
+   * Writes the raw 0-255 channel values of count pixels, in this preprocessor's channel order, for
+   * graphs that take uint8 input and do their own normalization. The mean, std and scale of the
+   * spec are not applied.
+   */
+  public void applyRaw(
+      final int[] pixels,
+      final int offset,
+      final int count,
+      final byte[] output,
+      final int outputOffset) {
+    final int s0 = shift0;
+    final int s2 = shift2;
+    final int end = offset + count;
+    for (int i = offset, o = outputOffset; i < end; ++i, o += 3) {
+      final int p = pixels[i];
+      output[o] = (byte) (p >> s0);
+      output[o + 1] = (byte) (p >> 8);
+      output[o + 2] = (byte) (p >> s2);
+    }
+  }
+
+  /** The uint8 counterpart of {@link #applyRgba}; see {@link #applyRaw}. */
+  public void applyRawRgba(final IntBuffer pixels, final ByteBuffer output) {
+    final boolean littleEndian = pixels.order() == ByteOrder.LITTLE_ENDIAN;
+    final int redShift = littleEndian ? 0 : 24;
+    final int blueShift = littleEndian ? 16 : 8;
+    final int greenShift = littleEndian ? 8 : 16;
+    final boolean bgr = spec.channelOrder == ChannelOrder.BGR;
+    final int s0 = bgr ? blueShift : redShift;
+    final int s2 = bgr ? redShift : blueShift;
+
+    final int count = pixels.limit();
+    for (int i = 0, o = 0; i < count; ++i, o += 3) {
+      final int p = pixels.get(i);
+      output.put(o, (byte) (p >> s0));
+      output.put(o + 1, (byte) (p >> greenShift));
+      output.put(o + 2, (byte) (p >> s2));
+    }
+  }
+
+  /** Allocates a direct buffer for numPixels pixels of raw uint8 RGB input. */
+  public static ByteBuffer allocateRawInputBuffer(final int numPixels) {
+    return ByteBuffer.allocateDirect(numPixels * 3);
+  }
+
+  /** Writes the raw channel values of a single ARGB pixel into output[offset..offset+2]. */
+  public void applyRawPixel(final int pixel, final byte[] output, final int offset) {
+    output[offset] = (byte) (pixel >> shift0);
+    output[offset + 1] = (byte) (pixel >> 8);
+    output[offset + 2] = (byte) (pixel >> shift2);
+  }
+
+  /** Normalizes a single ARGB pixel into output[offset..offset+2]. */
+  public void applyPixel(final int pixel, final float[] output, final int offset) {
+    output[offset] = lut0[(pixel >> shift0) & 0xFF];
+    output[offset + 1] = lut1[(pixel >> 8) & 0xFF];
+    output[offset + 2] = lut2[(pixel >> shift2) & 0xFF];
+  }
+}
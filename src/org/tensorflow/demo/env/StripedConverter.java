@@ -0,0 +1,158 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs per-row image conversions on a fork/join pool by recursively splitting the rows into
+ * stripes. Images with fewer than two stripes' worth of rows are converted on the calling thread.
+ */
+public class StripedConverter {
+  /** A conversion over the half-open row range [startRow, endRow). */
+  public interface RowTask {
+    void processRows(int startRow, int endRow);
+  }
+
+  private final ForkJoinPool pool;
+  private final int minStripeRows;
+
+  /**
+   * @param minStripeRows The smallest number of rows a stripe is split down to. Larger values
+   *     trade parallelism for lower scheduling overhead.
+   */
+  public StripedConverter(final int minStripeRows) {
+    this(minStripeRows, Runtime.getRuntime().availableProcessors());
+  }
+
+  public StripedConverter(final int minStripeRows, final int parallelism) {
+    if (minStripeRows < 1) {
+      throw new IllegalArgumentException("minStripeRows must be positive: " + minStripeRows);
+    }
+    this.minStripeRows = minStripeRows;
+    this.pool = new ForkJoinPool(Math.max(1, parallelism));
+  }
+
+  /** Runs task over rows [0, rows), in parallel if the image is large enough. */
+  public void run(final int rows, final RowTask task) {
+    if (rows < 2 * minStripeRows || pool.getParallelism() == 1 || pool.isShutdown()) {
+      task.processRows(0, rows);
+      return;
+    }
+    try {
+      pool.invoke(new Stripe(task, 0, rows));
+    } catch (final RejectedExecutionException e) {
+      // Shut down while a conversion was still in flight; finish it on this thread.
+      task.processRows(0, rows);
+    }
+  }
+
+  /** Normalizes width x height ARGB pixels into output through the given preprocessor. */
+  public void argbToFloat(
+      final int[] pixels,
+      final int width,
+      final int height,
+      final Preprocessor preprocessor,
+      final float[] output) {
+    run(
+        height,
+        new RowTask() {
+          @Override
+          public void processRows(final int startRow, final int endRow) {
+            final int offset = startRow * width;
+            preprocessor.apply(pixels, offset, (endRow - startRow) * width, output, offset * 3);
+          }
+        });
+  }
+
+  /**
+   * Packs width x height RGB values in [0, 1] back into opaque ARGB pixels, the inverse of the
+   * [0, 255] scaling applied to the stylize input.
+   */
+  public void floatToArgb(
+      final float[] values, final int width, final int height, final int[] output) {
+    run(
+        height,
+        new RowTask() {
+          @Override
+          public void processRows(final int startRow, final int endRow) {
+            final int end = endRow * width;
+            for (int i = startRow * width; i < end; ++i) {
+              output[i] =
+                  0xFF000000
+                      | (((int) (values[i * 3] * 255)) << 16)
+                      | (((int) (values[i * 3 + 1] * 255)) << 8)
+                      | ((int) (values[i * 3 + 2] * 255));
+            }
+          }
+        });
+  }
+
+  /**
+   * Packs width x height raw uint8 RGB values back into opaque ARGB pixels, for graphs whose
+   * output is quantized.
+   */
+  public void bytesToArgb(
+      final byte[] values, final int width, final int height, final int[] output) {
+    run(
+        height,
+        new RowTask() {
+          @Override
+          public void processRows(final int startRow, final int endRow) {
+            final int end = endRow * width;
+            for (int i = startRow * width; i < end; ++i) {
+              output[i] =
+                  0xFF000000
+                      | ((values[i * 3] & 0xFF) << 16)
+                      | ((values[i * 3 + 1] & 0xFF) << 8)
+                      | (values[i * 3 + 2] & 0xFF);
+            }
+          }
+        });
+  }
+
+  /** Stops the worker threads. Later conversions run serially on the calling thread. */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  private class Stripe extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RowTask task;
+    private final int startRow;
+    private final int endRow;
+
+    Stripe(final RowTask task, final int startRow, final int endRow) {
+      this.task = task;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    protected void compute() {
+      final int rows = endRow - startRow;
+      if (rows < 2 * minStripeRows) {
+        task.processRows(startRow, endRow);
+        return;
+      }
+      final int mid = startRow + rows / 2;
+      invokeAll(new Stripe(task, startRow, mid), new Stripe(task, mid, endRow));
+    }
+  }
+}
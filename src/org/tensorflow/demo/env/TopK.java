@@ -0,0 +1,128 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+/**
+ * Selects the k highest-scoring indices from a stream of (index, score) pairs using a fixed-size
+ * primitive min-heap, so selecting from N scores costs O(N log k) with no allocation.
+ *
+ * <p>Usage per frame: {@link #clear}, {@link #offer} every candidate, then {@link #sort} and read
+ * the winners through {@link #getIndex} and {@link #getScore}. Not thread-safe.
+ */
+public class TopK {
+  private final int[] indices;
+  private final float[] scores;
+  private int size;
+  private boolean sorted;
+
+  public TopK(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    indices = new int[capacity];
+    scores = new float[capacity];
+  }
+
+  public int getCapacity() {
+    return indices.length;
+  }
+
+  public void clear() {
+    size = 0;
+    sorted = false;
+  }
+
+  /**
+   * Returns the score a new candidate must exceed to be kept: the lowest kept score once full,
+   * negative infinity before that. Callers can test against this before computing anything else
+   * about a candidate.
+   */
+  public float threshold() {
+    return size == indices.length ? scores[0] : Float.NEGATIVE_INFINITY;
+  }
+
+  /** Offers a candidate, keeping it if it is among the k best seen since {@link #clear}. */
+  public void offer(final int index, final float score) {
+    if (sorted) {
+      throw new IllegalStateException("offer() after sort(); clear() first.");
+    }
+    if (size < indices.length) {
+      // Sift up from the new leaf.
+      int child = size++;
+      while (child > 0) {
+        final int parent = (child - 1) >> 1;
+        if (scores[parent] <= score) {
+          break;
+        }
+        indices[child] = indices[parent];
+        scores[child] = scores[parent];
+        child = parent;
+      }
+      indices[child] = index;
+      scores[child] = score;
+    } else if (score > scores[0]) {
+      siftDown(index, score, size);
+    }
+  }
+
+  /** Sorts the kept candidates by descending score and returns how many there are. */
+  public int sort() {
+    if (!sorted) {
+      // Heap sort: repeatedly move the minimum to the end of the shrinking heap.
+      for (int end = size - 1; end > 0; --end) {
+        final int minIndex = indices[0];
+        final float minScore = scores[0];
+        siftDown(indices[end], scores[end], end);
+        indices[end] = minIndex;
+        scores[end] = minScore;
+      }
+      sorted = true;
+    }
+    return size;
+  }
+
+  /** The index of the candidate at the given rank, 0 being the best. Requires {@link #sort}. */
+  public int getIndex(final int rank) {
+    return indices[rank];
+  }
+
+  /** The score of the candidate at the given rank, 0 being the best. Requires {@link #sort}. */
+  public float getScore(final int rank) {
+    return scores[rank];
+  }
+
+  /** Places (index, score) at the root of the heap of the given size and sifts it down. */
+  private void siftDown(final int index, final float score, final int heapSize) {
+    int parent = 0;
+    while (true) {
+      int child = 2 * parent + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && scores[child + 1] < scores[child]) {
+        ++child;
+      }
+      if (scores[child] >= score) {
+        break;
+      }
+      indices[parent] = indices[child];
+      scores[parent] = scores[child];
+      parent = child;
+    }
+    indices[parent] = index;
+    scores[parent] = score;
+  }
+}
@@ -0,0 +1,206 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+/**
+ * Converts YUV420 camera frames straight into a normalized float tensor.
+ *
+ * <p>The usual path converts the whole frame to ARGB, copies it into a Bitmap, draws that through
+ * a Canvas into the crop Bitmap, and then reads and normalizes the crop pixels again. This class
+ * does all of that in one pass: for every pixel of the model input it looks up the contributing
+ * source pixel in a nearest-neighbour {@link FrameResampler} table, converts it from YUV and
+ * normalizes it through a {@link Preprocessor} into the output array in [H, W, C] order.
+ *
+ * <p>Only the source pixels the crop actually samples are ever converted, so the cost scales with
+ * the model input size rather than the preview size. {@link #convertToArgb} uses the same sampling
+ * to produce the ARGB crop for display.
+ */
+public class YuvFrameConverter {
+  // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+  // are normalized to eight bits.
+  private static final int K_MAX_CHANNEL_VALUE = 262143;
+
+  private final int srcWidth;
+  private final int dstWidth;
+  private final int dstHeight;
+
+  // Source coordinates sampled by each output pixel, packed as (y << 16) | x.
+  private final int[] samples;
+
+  private final Preprocessor preprocessor;
+
+  /**
+   * @param sampler Crop geometry, from the camera frame to the model input. Must use {@link
+   *     FrameResampler.Mode#NEAREST} sampling.
+   * @param preprocessor Normalization and channel order expected by the model.
+   */
+  public YuvFrameConverter(final FrameResampler sampler, final Preprocessor preprocessor) {
+    if (sampler.getMode() != FrameResampler.Mode.NEAREST) {
+      throw new IllegalArgumentException("YUV conversion requires nearest-neighbour sampling.");
+    }
+    this.srcWidth = sampler.getSrcWidth();
+    this.dstWidth = sampler.getDstWidth();
+    this.dstHeight = sampler.getDstHeight();
+    this.preprocessor = preprocessor;
+
+    final int[] indices = sampler.getSourceIndices();
+    samples = new int[indices.length];
+    for (int i = 0; i < indices.length; ++i) {
+      samples[i] = ((indices[i] / srcWidth) << 16) | (indices[i] % srcWidth);
+    }
+  }
+
+  /**
+   * Converts one frame into the model input layout. The output must hold at least
+   * dstWidth * dstHeight * 3 values.
+   */
+  public void convert(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final float[] output) {
+    convertRows(
+        yData, uData, vData, yRowStride, uvRowStride, uvPixelStride, 0, dstHeight, output);
+  }
+
+  /**
+   * Converts only output rows [startRow, endRow). Disjoint row ranges may be converted
+   * concurrently, e.g. through a {@link StripedConverter}.
+   */
+  public void convertRows(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int startRow,
+      final int endRow,
+      final float[] output) {
+    convertRows(
+        yData, uData, vData, yRowStride, uvRowStride, uvPixelStride, startRow, endRow, output,
+        null);
+  }
+
+  /**
+   * Converts one frame into raw uint8 channel values, for graphs that take uint8 input. The output
+   * must hold at least dstWidth * dstHeight * 3 values.
+   */
+  public void convert(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final byte[] output) {
+    convertRows(
+        yData, uData, vData, yRowStride, uvRowStride, uvPixelStride, 0, dstHeight, null, output);
+  }
+
+  /** Converts only output rows [startRow, endRow) into raw uint8 channel values. */
+  public void convertRows(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int startRow,
+      final int endRow,
+      final byte[] output) {
+    convertRows(
+        yData, uData, vData, yRowStride, uvRowStride, uvPixelStride, startRow, endRow, null,
+        output);
+  }
+
+  /**
+   * Converts only the source pixels sampled by the crop into dstWidth x dstHeight ARGB pixels,
+   * for showing or saving what the model sees. Nothing outside the crop is converted.
+   */
+  public void convertToArgb(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] output) {
+    final int[] sampled = samples;
+    for (int i = 0; i < sampled.length; ++i) {
+      final int sx = sampled[i] & 0xFFFF;
+      final int sy = sampled[i] >>> 16;
+      final int uvOffset = uvRowStride * (sy >> 1) + uvPixelStride * (sx >> 1);
+      output[i] =
+          yuvToRgb(
+              0xff & yData[yRowStride * sy + sx], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+    }
+  }
+
+  // Exactly one of floatOutput and byteOutput is non-null.
+  private void convertRows(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int startRow,
+      final int endRow,
+      final float[] floatOutput,
+      final byte[] byteOutput) {
+    final int[] sampled = samples;
+    final int end = endRow * dstWidth;
+    for (int i = startRow * dstWidth; i < end; ++i) {
+      final int sx = sampled[i] & 0xFFFF;
+      final int sy = sampled[i] >>> 16;
+      final int uvOffset = uvRowStride * (sy >> 1) + uvPixelStride * (sx >> 1);
+      final int rgb =
+          yuvToRgb(
+              0xff & yData[yRowStride * sy + sx], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+      if (floatOutput != null) {
+        preprocessor.applyPixel(rgb, floatOutput, i * 3);
+      } else {
+        preprocessor.applyRawPixel(rgb, byteOutput, i * 3);
+      }
+    }
+  }
+
+  /** Same fixed-point conversion as the native YUV2RGB in yuv2rgb.cc. */
+  private static int yuvToRgb(int y, int u, int v) {
+    // Adjust and check YUV values
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+
+    // The conversion is done in 10-bit fixed point because some Android devices do not have
+    // floating point in hardware.
+    final int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+    r = r > K_MAX_CHANNEL_VALUE ? K_MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+    g = g > K_MAX_CHANNEL_VALUE ? K_MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+    b = b > K_MAX_CHANNEL_VALUE ? K_MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+}
@@ -0,0 +1,94 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.tracking;
+
+/**
+ * Decides how often to run the detector, based on how well the tracker is following the objects
+ * it already has.
+ *
+ * <p>Optical-flow tracking is much cheaper than detection, so while every tracked object still
+ * correlates well with its template, detections are spaced up to the maximum interval. As the
+ * weakest track's correlation decays towards the weak threshold, the interval shrinks linearly to
+ * the minimum. With nothing tracked, the minimum interval applies, so new objects are found as
+ * quickly as before.
+ */
+public class DetectionScheduler {
+  private final long minIntervalMs;
+  private final long maxIntervalMs;
+  private final float weakCorrelation;
+  private final float healthyCorrelation;
+
+  private long lastDetectionMs = Long.MIN_VALUE / 2;
+  private long intervalMs;
+
+  /**
+   * @param minIntervalMs Interval when tracking is weak or nothing is tracked; 0 detects whenever
+   *     the detector is free.
+   * @param maxIntervalMs Interval when every track is healthy.
+   * @param weakCorrelation Correlation at or below which a track counts as weak.
+   * @param healthyCorrelation Correlation at or above which a track counts as healthy.
+   */
+  public DetectionScheduler(
+      final long minIntervalMs,
+      final long maxIntervalMs,
+      final float weakCorrelation,
+      final float healthyCorrelation) {
+    if (maxIntervalMs < minIntervalMs || healthyCorrelation <= weakCorrelation) {
+      throw new IllegalArgumentException("Intervals or correlation thresholds out of order.");
+    }
+    this.minIntervalMs = minIntervalMs;
+    this.maxIntervalMs = maxIntervalMs;
+    this.weakCorrelation = weakCorrelation;
+    this.healthyCorrelation = healthyCorrelation;
+    this.intervalMs = minIntervalMs;
+  }
+
+  /**
+   * Returns whether the detector should run now.
+   *
+   * @param numTracked Number of objects currently tracked.
+   * @param minCorrelation Lowest current correlation among them; ignored if none are tracked.
+   * @param nowMs Current time.
+   */
+  public boolean shouldDetect(final int numTracked, final float minCorrelation, final long nowMs) {
+    if (numTracked == 0) {
+      intervalMs = minIntervalMs;
+    } else {
+      final float health =
+          Math.max(
+              0.0f,
+              Math.min(
+                  1.0f,
+                  (minCorrelation - weakCorrelation) / (healthyCorrelation - weakCorrelation)));
+      intervalMs = minIntervalMs + (long) ((maxIntervalMs - minIntervalMs) * health);
+    }
+    return nowMs - lastDetectionMs >= intervalMs;
+  }
+
+  /**
+   * Records that a detection was started at nowMs. The interval runs from when detections start,
+   * not from when their results arrive, so frames that come in while a detection is still running
+   * do not start detections of their own.
+   */
+  public void onDetectionStarted(final long nowMs) {
+    lastDetectionMs = nowMs;
+  }
+
+  /** The interval chosen by the last call to {@link #shouldDetect}. */
+  public long getIntervalMs() {
+    return intervalMs;
+  }
+}
@@ -25,19 +25,22 @@ import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
-import android.util.Pair;
+import android.util.Log;
 import android.util.TypedValue;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import org.tensorflow.demo.Classifier.DetectionBatch;
 import org.tensorflow.demo.Classifier.Recognition;
 import org.tensorflow.demo.env.BorderedText;
 import org.tensorflow.demo.env.ImageUtils;
 import org.tensorflow.demo.env.Logger;
 
 /**
- * A tracker wrapping ObjectTracker that also handles non-max suppression and matching existing
- * objects to new detections.
+ * A tracker wrapping ObjectTracker that also handles matching existing objects to new detections.
+ * Overlapping detections within a frame are expected to have been suppressed by the detector,
+ * see {@link org.tensorflow.demo.env.NonMaxSuppression}.
  */
 public class MultiBoxTracker {
   private final Logger logger = new Logger();
@@ -57,6 +60,11 @@ public class MultiBoxTracker {
   // Consider object to be lost if correlation falls below this threshold.
   private static final float MIN_CORRELATION = 0.3f;
 
+  // By default, detect whenever possible while any track is marginal, and only once a second while
+  // every track correlates at least this well.
+  private static final float HEALTHY_CORRELATION = 0.9f;
+  private static final long MAX_DETECTION_INTERVAL_MS = 1000;
+
   private static final int[] COLORS = {
     Color.BLUE, Color.RED, Color.GREEN, Color.YELLOW, Color.CYAN, Color.MAGENTA
   };
@@ -65,7 +73,8 @@ public class MultiBoxTracker {
 
   public ObjectTracker objectTracker;
 
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  // Where the last detections appear on screen, for drawDebug.
+  private final DetectionBatch screenRects = new DetectionBatch(16);
 
   private static class TrackedRecognition {
     ObjectTracker.TrackedObject trackedObject;
@@ -78,6 +87,16 @@ public class MultiBoxTracker {
 
   private final Paint boxPaint = new Paint();
 
+  // Reused for every set of results, so that handling them does not allocate per result.
+  private final Matrix rgbFrameToScreen = new Matrix();
+  private final RectF detectionFrameRect = new RectF();
+  private final RectF detectionScreenRect = new RectF();
+  private int[] indicesToTrack = new int[16];
+  private final List<TrackedRecognition> removeList = new LinkedList<TrackedRecognition>();
+
+  // Scratch space for getIntersectOverUnion.
+  private final RectF intersection = new RectF();
+
   private final float textSizePx;
   private final BorderedText borderedText;
 
@@ -88,6 +107,10 @@ public class MultiBoxTracker {
 
   private int sensorOrientation;
 
+  private DetectionScheduler scheduler =
+      new DetectionScheduler(
+          0, MAX_DETECTION_INTERVAL_MS, MARGINAL_CORRELATION, HEALTHY_CORRELATION);
+
   public MultiBoxTracker(final DisplayMetrics metrics) {
     for (final int color : COLORS) {
       availableColors.add(color);
@@ -104,6 +127,34 @@ public class MultiBoxTracker {
     borderedText = new BorderedText(textSizePx);
   }
 
+  /** Replaces the policy deciding how often {@link #shouldDetect} asks for a detection. */
+  public synchronized void setDetectionScheduler(final DetectionScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Returns whether the detector should run on the current frame, given how well the tracked
+   * objects are still being followed.
+   */
+  public synchronized boolean shouldDetect(final long nowMs) {
+    float minCorrelation = 1.0f;
+    for (final TrackedRecognition recognition : trackedObjects) {
+      minCorrelation =
+          Math.min(minCorrelation, recognition.trackedObject.getCurrentCorrelation());
+    }
+    return scheduler.shouldDetect(trackedObjects.size(), minCorrelation, nowMs);
+  }
+
+  /** Records that the detector was just given a frame; call this whenever shouldDetect passes. */
+  public synchronized void onDetectionStarted(final long nowMs) {
+    scheduler.onDetectionStarted(nowMs);
+  }
+
+  /** The detection interval chosen by the last call to {@link #shouldDetect}. */
+  public synchronized long getDetectionIntervalMs() {
+    return scheduler.getIntervalMs();
+  }
+
   private Matrix getFrameToCanvasMatrix() {
     return frameToCanvasMatrix;
   }
@@ -118,11 +169,13 @@ public class MultiBoxTracker {
     boxPaint.setAlpha(200);
     boxPaint.setStyle(Style.STROKE);
 
-    for (final Pair<Float, RectF> detection : screenRects) {
-      final RectF rect = detection.second;
+    final RectF rect = new RectF();
+    for (int i = 0; i < screenRects.size(); ++i) {
+      final float confidence = screenRects.getScores()[i];
+      screenRects.getLocation(i, rect);
       canvas.drawRect(rect, boxPaint);
-      canvas.drawText("" + detection.first, rect.left, rect.top, textPaint);
-      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + detection.first);
+      canvas.drawText("" + confidence, rect.left, rect.top, textPaint);
+      borderedText.drawText(canvas, rect.centerX(), rect.centerY(), "" + confidence);
     }
 
     if (objectTracker == null) {
@@ -151,6 +204,16 @@ public class MultiBoxTracker {
     processResults(timestamp, results, frame);
   }
 
+  /**
+   * Like {@link #trackResults(List, byte[], long)}, reading the results straight from a reusable
+   * batch. No Recognition objects are created, and results that are not tracked allocate nothing.
+   */
+  public synchronized void trackResults(
+      final DetectionBatch results, final byte[] frame, final long timestamp) {
+    logger.i("Processing %d results from %d", results.size(), timestamp);
+    processResults(timestamp, results, frame);
+  }
+
   public synchronized void draw(final Canvas canvas) {
     if (objectTracker == null) {
       return;
@@ -222,58 +285,131 @@ public class MultiBoxTracker {
 
   private void processResults(
       final long timestamp, final List<Recognition> results, final byte[] originalFrame) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
+    screenRects.clear(null);
+    rgbFrameToScreen.set(getFrameToCanvasMatrix());
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
-
-    for (final Recognition result : results) {
+    int numToTrack = 0;
+    for (int i = 0; i < results.size(); ++i) {
+      final Recognition result = results.get(i);
       if (result.getLocation() == null) {
         continue;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+      if (addScreenRect(result.getLocation(), result.getConfidence())) {
+        addIndexToTrack(numToTrack++, i);
+      }
+    }
 
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+    if (!canTrack(numToTrack)) {
+      return;
+    }
+    for (int n = 0; n < numToTrack; ++n) {
+      final Recognition result = results.get(indicesToTrack[n]);
+      handleDetection(
+          originalFrame, timestamp, result.getLocation(), result.getConfidence(), result.getTitle());
+    }
+  }
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
+  private void processResults(
+      final long timestamp, final DetectionBatch results, final byte[] originalFrame) {
+    screenRects.clear(null);
+    rgbFrameToScreen.set(getFrameToCanvasMatrix());
+
+    final float[] scores = results.getScores();
+    int numToTrack = 0;
+    for (int i = 0; i < results.size(); ++i) {
+      if (!results.hasLocation(i)) {
         continue;
       }
+      if (addScreenRect(results.getLocation(i, detectionFrameRect), scores[i])) {
+        addIndexToTrack(numToTrack++, i);
+      }
+    }
+
+    if (!canTrack(numToTrack)) {
+      return;
+    }
+    for (int n = 0; n < numToTrack; ++n) {
+      final int i = indicesToTrack[n];
+      handleDetection(
+          originalFrame,
+          timestamp,
+          results.getLocation(i, detectionFrameRect),
+          scores[i],
+          results.getTitle(i));
+    }
+  }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+  /**
+   * Records where a detection appears on screen and returns whether it is large enough to track.
+   */
+  private boolean addScreenRect(final RectF detectionFrameRect, final float confidence) {
+    rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+    if (logger.isLoggable(Log.VERBOSE)) {
+      logger.v("Result! Frame: %s mapped to screen: %s", detectionFrameRect, detectionScreenRect);
     }
 
-    if (rectsToTrack.isEmpty()) {
+    screenRects.add(
+        0,
+        0,
+        confidence,
+        detectionScreenRect.left,
+        detectionScreenRect.top,
+        detectionScreenRect.right,
+        detectionScreenRect.bottom);
+
+    if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
+      logger.w("Degenerate rectangle! %s", detectionFrameRect);
+      return false;
+    }
+    return true;
+  }
+
+  private void addIndexToTrack(final int position, final int index) {
+    if (position == indicesToTrack.length) {
+      indicesToTrack = Arrays.copyOf(indicesToTrack, position * 2);
+    }
+    indicesToTrack[position] = index;
+  }
+
+  private boolean canTrack(final int numToTrack) {
+    if (numToTrack == 0) {
       logger.v("Nothing to track, aborting.");
-      return;
+      return false;
     }
 
     if (objectTracker == null) {
       logger.w("No ObjectTracker, can't track anything!");
-      return;
+      return false;
     }
 
-    logger.i("%d rects to track", rectsToTrack.size());
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      handleDetection(originalFrame, timestamp, potential);
-    }
+    logger.i("%d rects to track", numToTrack);
+    return true;
   }
 
+  /**
+   * Decides whether to track a detection, replacing tracked objects it overlaps if it is better.
+   * location is only read, so it may be scratch space.
+   */
   private void handleDetection(
-      final byte[] frameCopy, final long timestamp, final Pair<Float, Recognition> potential) {
+      final byte[] frameCopy,
+      final long timestamp,
+      final RectF location,
+      final float confidence,
+      final String title) {
+    // A detection of something already tracked well is dropped before a native tracker is started
+    // for it; the check below repeats this with the tracked position of the new object.
+    if (isCoveredByStrongTrack(location, confidence)) {
+      logger.v("Already tracking %s at %s.", title, location);
+      return;
+    }
+
     final ObjectTracker.TrackedObject potentialObject =
-        objectTracker.trackObject(potential.second.getLocation(), timestamp, frameCopy);
+        objectTracker.trackObject(location, timestamp, frameCopy);
 
     final float potentialCorrelation = potentialObject.getCurrentCorrelation();
     logger.v(
         "Tracked object went from %s to %s with correlation %.2f",
-        potential.second, potentialObject.getTrackedPositionInPreviewFrame(), potentialCorrelation);
+        location, potentialObject.getTrackedPositionInPreviewFrame(), potentialCorrelation);
 
     if (potentialCorrelation < MARGINAL_CORRELATION) {
       logger.v("Correlation too low to begin tracking %s.", potentialObject);
@@ -281,7 +417,7 @@ public class MultiBoxTracker {
       return;
     }
 
-    final List<TrackedRecognition> removeList = new LinkedList<TrackedRecognition>();
+    removeList.clear();
 
     float maxIntersect = 0.0f;
 
@@ -292,20 +428,16 @@ public class MultiBoxTracker {
     // Look for intersections that will be overridden by this object or an intersection that would
     // prevent this one from being placed.
     for (final TrackedRecognition trackedRecognition : trackedObjects) {
-      final RectF a = trackedRecognition.trackedObject.getTrackedPositionInPreviewFrame();
-      final RectF b = potentialObject.getTrackedPositionInPreviewFrame();
-      final RectF intersection = new RectF();
-      final boolean intersects = intersection.setIntersect(a, b);
-
-      final float intersectArea = intersection.width() * intersection.height();
-      final float totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea;
-      final float intersectOverUnion = intersectArea / totalArea;
+      final float intersectOverUnion =
+          getIntersectOverUnion(
+              trackedRecognition.trackedObject.getTrackedPositionInPreviewFrame(),
+              potentialObject.getTrackedPositionInPreviewFrame());
 
       // If there is an intersection with this currently tracked box above the maximum overlap
       // percentage allowed, either the new recognition needs to be dismissed or the old
       // recognition needs to be removed and possibly replaced with the new one.
-      if (intersects && intersectOverUnion > MAX_OVERLAP) {
-        if (potential.first < trackedRecognition.detectionConfidence
+      if (intersectOverUnion > MAX_OVERLAP) {
+        if (confidence < trackedRecognition.detectionConfidence
             && trackedRecognition.trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION) {
           // If track for the existing object is still going strong and the detection score was
           // good, reject this new object.
@@ -329,7 +461,7 @@ public class MultiBoxTracker {
     // object.
     if (availableColors.isEmpty() && removeList.isEmpty()) {
       for (final TrackedRecognition candidate : trackedObjects) {
-        if (candidate.detectionConfidence < potential.first) {
+        if (candidate.detectionConfidence < confidence) {
           if (recogToReplace == null
               || candidate.detectionConfidence < recogToReplace.detectionConfidence) {
             // Save it so that we use this color for the new object.
@@ -369,17 +501,44 @@ public class MultiBoxTracker {
     logger.v(
         "Tracking object %s (%s) with detection confidence %.2f at position %s",
         potentialObject,
-        potential.second.getTitle(),
-        potential.first,
-        potential.second.getLocation());
+        title,
+        confidence,
+        location);
     final TrackedRecognition trackedRecognition = new TrackedRecognition();
-    trackedRecognition.detectionConfidence = potential.first;
+    trackedRecognition.detectionConfidence = confidence;
     trackedRecognition.trackedObject = potentialObject;
-    trackedRecognition.title = potential.second.getTitle();
+    trackedRecognition.title = title;
 
     // Use the color from a replaced object before taking one from the color queue.
     trackedRecognition.color =
         recogToReplace != null ? recogToReplace.color : availableColors.poll();
     trackedObjects.add(trackedRecognition);
   }
+
+  /**
+   * Returns whether a detection at location overlaps an object that was detected with more
+   * confidence and is still tracked well, so that the detection would be rejected anyway.
+   */
+  private boolean isCoveredByStrongTrack(final RectF location, final float confidence) {
+    for (final TrackedRecognition trackedRecognition : trackedObjects) {
+      final ObjectTracker.TrackedObject trackedObject = trackedRecognition.trackedObject;
+      if (confidence < trackedRecognition.detectionConfidence
+          && trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION
+          && getIntersectOverUnion(trackedObject.getTrackedPositionInPreviewFrame(), location)
+              > MAX_OVERLAP) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the intersection over union of two boxes, or 0 if they do not intersect. */
+  private float getIntersectOverUnion(final RectF a, final RectF b) {
+    if (!intersection.setIntersect(a, b)) {
+      return 0.0f;
+    }
+    final float intersectArea = intersection.width() * intersection.height();
+    final float totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea;
+    return intersectArea / totalArea;
+  }
 }
@@ -0,0 +1,101 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Checks {@link FastMath} against {@link Math} over the documented ranges and at the clamps. */
+public class FastMathTest {
+  private static double exactSigmoid(final double x) {
+    return 1. / (1. + Math.exp(-x));
+  }
+
+  @Test
+  public void sigmoidIsWithinDocumentedError() {
+    // Covers the table, its ends, and the constant tails beyond them.
+    for (float x = -24.0f; x <= 24.0f; x += 0.0013f) {
+      assertEquals("sigmoid(" + x + ")", exactSigmoid(x), FastMath.sigmoid(x), 4e-6);
+    }
+  }
+
+  @Test
+  public void sigmoidSaturatesAtTableEnds() {
+    assertEquals(0.0f, FastMath.sigmoid(-16.0f), 0.0f);
+    assertEquals(1.0f, FastMath.sigmoid(16.0f), 0.0f);
+    assertEquals(0.0f, FastMath.sigmoid(Float.NEGATIVE_INFINITY), 0.0f);
+    assertEquals(1.0f, FastMath.sigmoid(Float.POSITIVE_INFINITY), 0.0f);
+
+    // Just inside the ends, the table still agrees with the exact value.
+    final float inside = Math.nextDown(16.0f);
+    assertEquals(exactSigmoid(inside), FastMath.sigmoid(inside), 4e-6);
+    assertEquals(exactSigmoid(-inside), FastMath.sigmoid(-inside), 4e-6);
+  }
+
+  @Test
+  public void expIsWithinDocumentedRelativeError() {
+    for (float x = -87.0f; x <= 88.0f; x += 0.0071f) {
+      final double exact = Math.exp(x);
+      final double relativeError = Math.abs(FastMath.exp(x) - exact) / exact;
+      assertTrue("exp(" + x + ") off by " + relativeError, relativeError < 1e-5);
+    }
+  }
+
+  @Test
+  public void expIsExactAtSmallIntegersOfLog2() {
+    // Whole powers of two hit the table exactly, apart from rounding x * log2(e).
+    for (int n = -20; n <= 20; ++n) {
+      final float x = (float) (n * Math.log(2.0));
+      assertEquals(Math.exp(x), FastMath.exp(x), Math.exp(x) * 1e-6);
+    }
+  }
+
+  @Test
+  public void expClampsToFloatLimits() {
+    assertEquals(FastMath.exp(-87.0f), FastMath.exp(-1000.0f), 0.0f);
+    assertEquals(FastMath.exp(88.0f), FastMath.exp(1000.0f), 0.0f);
+    assertEquals(FastMath.exp(-87.0f), FastMath.exp(Float.NEGATIVE_INFINITY), 0.0f);
+    assertEquals(FastMath.exp(88.0f), FastMath.exp(Float.POSITIVE_INFINITY), 0.0f);
+
+    // The clamped results are the exact values at the limits, finite and non-zero.
+    final float max = FastMath.exp(88.0f);
+    final float min = FastMath.exp(-87.0f);
+    assertTrue(!Float.isInfinite(max) && min > 0.0f);
+    assertEquals(Math.exp(88.0), max, Math.exp(88.0) * 1e-5);
+    assertEquals(Math.exp(-87.0), min, Math.exp(-87.0) * 1e-5);
+  }
+
+  @Test
+  public void modesMatchTheirImplementations() {
+    for (float x = -10.0f; x <= 10.0f; x += 0.37f) {
+      assertEquals((float) exactSigmoid(x), FastMath.Mode.EXACT.sigmoid(x), 0.0f);
+      assertEquals((float) Math.exp(x), FastMath.Mode.EXACT.exp(x), 0.0f);
+      assertEquals(FastMath.sigmoid(x), FastMath.Mode.APPROXIMATE.sigmoid(x), 0.0f);
+      assertEquals(FastMath.exp(x), FastMath.Mode.APPROXIMATE.exp(x), 0.0f);
+    }
+  }
+
+  @Test
+  public void logitInvertsSigmoid() {
+    for (float p = 0.01f; p < 1.0f; p += 0.01f) {
+      assertEquals(p, exactSigmoid(FastMath.logit(p)), 1e-6);
+    }
+    assertEquals(Float.NEGATIVE_INFINITY, FastMath.logit(0.0f), 0.0f);
+    assertEquals(Float.POSITIVE_INFINITY, FastMath.logit(1.0f), 0.0f);
+  }
+}
@@ -0,0 +1,142 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Checks how {@link FramePipeline} hands frames between stages under each policy. */
+public class FramePipelineTest {
+  private static final int NUM_SLOTS = 3;
+
+  private static List<int[]> createSlots() {
+    final List<int[]> slots = new ArrayList<int[]>();
+    for (int i = 0; i < NUM_SLOTS; ++i) {
+      slots.add(new int[1]);
+    }
+    return slots;
+  }
+
+  /**
+   * Fills every slot while the last stage is held up, then lets it go. Returns the frames the last
+   * stage saw, in order.
+   */
+  private static List<Integer> runWithBlockedLastStage(final FramePipeline.Policy policy)
+      throws InterruptedException {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch firstStageDone = new CountDownLatch(NUM_SLOTS);
+    final CountDownLatch lastStageStarted = new CountDownLatch(1);
+    final List<Integer> seen = Collections.synchronizedList(new ArrayList<Integer>());
+    final FramePipeline<int[]> pipeline =
+        new FramePipeline<int[]>(createSlots())
+            .addStage(
+                "first",
+                new FramePipeline.Stage<int[]>() {
+                  @Override
+                  public boolean process(final int[] frame) {
+                    firstStageDone.countDown();
+                    return true;
+                  }
+                })
+            .addStage(
+                "last",
+                new FramePipeline.Stage<int[]>() {
+                  @Override
+                  public boolean process(final int[] frame) {
+                    lastStageStarted.countDown();
+                    try {
+                      release.await();
+                    } catch (final InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                    seen.add(frame[0]);
+                    return true;
+                  }
+                },
+                policy);
+    pipeline.start();
+    try {
+      for (int i = 0; i < NUM_SLOTS; ++i) {
+        final int[] frame = pipeline.obtain();
+        assertNotNull(frame);
+        frame[0] = i;
+        pipeline.submit(frame);
+        // One frame at a time, so the first stage never drops any.
+        if (i == 0) {
+          assertTrue(lastStageStarted.await(5, TimeUnit.SECONDS));
+        } else {
+          waitForCount(firstStageDone, NUM_SLOTS - i - 1);
+        }
+      }
+      release.countDown();
+      // Every slot returns once the last stage has finished or dropped its frame.
+      for (int i = 0; i < NUM_SLOTS; ++i) {
+        assertNotNull(obtainWithin(pipeline, 5000));
+      }
+      return new ArrayList<Integer>(seen);
+    } finally {
+      pipeline.close();
+    }
+  }
+
+  private static void waitForCount(final CountDownLatch latch, final long count)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (latch.getCount() > count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(count, latch.getCount());
+  }
+
+  private static int[] obtainWithin(final FramePipeline<int[]> pipeline, final long timeoutMs)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    while (System.currentTimeMillis() < deadline) {
+      final int[] frame = pipeline.obtain();
+      if (frame != null) {
+        return frame;
+      }
+      Thread.sleep(1);
+    }
+    return null;
+  }
+
+  @Test
+  public void keepLatestDropsWaitingFrames() throws InterruptedException {
+    // Frame 0 is in the last stage; 1 waits and is displaced by 2.
+    final List<Integer> seen = runWithBlockedLastStage(FramePipeline.Policy.KEEP_LATEST);
+    assertEquals(2, seen.size());
+    assertEquals(0, (int) seen.get(0));
+    assertEquals(2, (int) seen.get(1));
+  }
+
+  @Test
+  public void keepAllProcessesEveryFrameInOrder() throws InterruptedException {
+    final List<Integer> seen = runWithBlockedLastStage(FramePipeline.Policy.KEEP_ALL);
+    assertEquals(NUM_SLOTS, seen.size());
+    for (int i = 0; i < NUM_SLOTS; ++i) {
+      assertEquals(i, (int) seen.get(i));
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks {@link FrameResampler} against a straightforward floating-point reference. */
+public class FrameResamplerTest {
+  private static int[] randomFrame(final int width, final int height, final long seed) {
+    final Random random = new Random(seed);
+    final int[] pixels = new int[width * height];
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt();
+    }
+    return pixels;
+  }
+
+  private static int channel(final int pixel, final int c) {
+    return (pixel >>> (8 * c)) & 0xFF;
+  }
+
+  /** Bilinear sampling in floating point, with the same geometry and edge clamping. */
+  private static float[] referenceBilinear(
+      final int[] src,
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int rotation,
+      final boolean maintainAspect) {
+    final float[] t =
+        FrameResampler.getInverseTransform(
+            srcWidth, srcHeight, dstWidth, dstHeight, rotation, maintainAspect);
+    final float[] out = new float[dstWidth * dstHeight * 4];
+    for (int y = 0; y < dstHeight; ++y) {
+      for (int x = 0; x < dstWidth; ++x) {
+        final float cx = x + 0.5f;
+        final float cy = y + 0.5f;
+        final float px = clamp(t[0] * cx + t[1] * cy + t[2] - 0.5f, 0, srcWidth - 1);
+        final float py = clamp(t[3] * cx + t[4] * cy + t[5] - 0.5f, 0, srcHeight - 1);
+        final int x0 = (int) px;
+        final int y0 = (int) py;
+        final int x1 = Math.min(x0 + 1, srcWidth - 1);
+        final int y1 = Math.min(y0 + 1, srcHeight - 1);
+        final float fx = px - x0;
+        final float fy = py - y0;
+        for (int c = 0; c < 4; ++c) {
+          final float top =
+              channel(src[y0 * srcWidth + x0], c) * (1 - fx)
+                  + channel(src[y0 * srcWidth + x1], c) * fx;
+          final float bottom =
+              channel(src[y1 * srcWidth + x0], c) * (1 - fx)
+                  + channel(src[y1 * srcWidth + x1], c) * fx;
+          out[(y * dstWidth + x) * 4 + c] = top * (1 - fy) + bottom * fy;
+        }
+      }
+    }
+    return out;
+  }
+
+  private static float clamp(final float value, final float min, final float max) {
+    return value < min ? min : (value > max ? max : value);
+  }
+
+  /**
+   * Resamples a random frame and compares every channel with the reference. The 8-bit weights and
+   * the rounding after each of the two passes allow a little over one level of error per channel.
+   * Rounding, unlike truncation, keeps the mean error near zero; exact halves still round up, so
+   * it is not quite zero.
+   */
+  private static void checkBilinear(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int rotation,
+      final boolean maintainAspect) {
+    final int[] src = randomFrame(srcWidth, srcHeight, srcWidth * 31 + rotation);
+    final FrameResampler resampler =
+        new FrameResampler(
+            srcWidth,
+            srcHeight,
+            dstWidth,
+            dstHeight,
+            rotation,
+            maintainAspect,
+            FrameResampler.Mode.BILINEAR);
+    final int[] dst = new int[dstWidth * dstHeight];
+    resampler.resample(src, dst);
+
+    final float[] expected =
+        referenceBilinear(src, srcWidth, srcHeight, dstWidth, dstHeight, rotation, maintainAspect);
+    double errorSum = 0;
+    for (int i = 0; i < dst.length; ++i) {
+      for (int c = 0; c < 4; ++c) {
+        final float error = channel(dst[i], c) - expected[i * 4 + c];
+        assertTrue("pixel " + i + " channel " + c + " off by " + error, Math.abs(error) <= 1.5f);
+        errorSum += error;
+      }
+    }
+    final double meanError = errorSum / (dst.length * 4);
+    assertTrue("biased by " + meanError, Math.abs(meanError) < 0.25);
+  }
+
+  @Test
+  public void bilinearDownscaleMatchesReference() {
+    checkBilinear(640, 480, 300, 300, 0, true);
+  }
+
+  @Test
+  public void bilinearUpscaleMatchesReference() {
+    checkBilinear(64, 48, 200, 150, 0, false);
+  }
+
+  @Test
+  public void bilinearRotatedMatchesReference() {
+    checkBilinear(640, 480, 224, 224, 90, true);
+    checkBilinear(640, 480, 224, 224, 270, true);
+    checkBilinear(320, 240, 200, 150, 180, false);
+  }
+
+  @Test
+  public void bilinearKeepsFlatColorsExact() {
+    final int[] src = new int[32 * 32];
+    Arrays.fill(src, 0xFF7F4001);
+    final FrameResampler resampler =
+        new FrameResampler(32, 32, 19, 23, 90, false, FrameResampler.Mode.BILINEAR);
+    final int[] dst = new int[19 * 23];
+    resampler.resample(src, dst);
+    for (final int pixel : dst) {
+      assertEquals(0xFF7F4001, pixel);
+    }
+  }
+
+  @Test
+  public void sameSizeIsIdentity() {
+    final int[] src = randomFrame(40, 30, 7);
+    for (final FrameResampler.Mode mode : FrameResampler.Mode.values()) {
+      final int[] dst = new int[40 * 30];
+      new FrameResampler(40, 30, 40, 30, 0, false, mode).resample(src, dst);
+      assertArrayEquals(mode.toString(), src, dst);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/* Copyright 2017 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.demo.env;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/** Checks which frames {@link MotionGate} lets through. */
+public class MotionGateTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 64;
+  private static final int BLOCK_SIZE = 16;
+  private static final float BLOCK_THRESHOLD = 6.0f;
+  private static final float MOTION_THRESHOLD = 0.05f;
+  private static final long MAX_STALENESS_MS = 1000;
+
+  private static MotionGate createGate(final int maxSamples) {
+    return new MotionGate(
+        WIDTH,
+        HEIGHT,
+        BLOCK_SIZE,
+        maxSamples,
+        BLOCK_THRESHOLD,
+        MOTION_THRESHOLD,
+        MAX_STALENESS_MS);
+  }
+
+  /** Vertical stripes of black and white, width wide, starting at offset. */
+  private static byte[] stripes(final int width, final int offset) {
+    final byte[] plane = new byte[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        plane[y * WIDTH + x] = (byte) ((((x + offset) / width) & 1) != 0 ? 255 : 0);
+      }
+    }
+    return plane;
+  }
+
+  private static long sum(final byte[] plane, final int x0, final int y0) {
+    long sum = 0;
+    for (int y = y0; y < y0 + BLOCK_SIZE; ++y) {
+      for (int x = x0; x < x0 + BLOCK_SIZE; ++x) {
+        sum += plane[y * WIDTH + x] & 0xFF;
+      }
+    }
+    return sum;
+  }
+
+  @Test
+  public void meanPreservingShiftPasses() {
+    // Shifting 4-pixel stripes by 4 pixels swaps black and white everywhere, while every block,
+    // holding two whole periods, keeps the same mean.
+    final byte[] before = stripes(4, 0);
+    final byte[] after = stripes(4, 4);
+    for (int y = 0; y < HEIGHT; y += BLOCK_SIZE) {
+      for (int x = 0; x < WIDTH; x += BLOCK_SIZE) {
+        assertEquals(sum(before, x, y), sum(after, x, y));
+      }
+    }
+
+    final MotionGate gate = createGate(WIDTH * HEIGHT);
+    assertTrue(gate.shouldRun(before, WIDTH, 0));
+    assertTrue(gate.shouldRun(after, WIDTH, 10));
+    assertEquals(1.0f, gate.getLastMotion(), 0.0f);
+  }
+
+  @Test
+  public void smallChangesAreSkipped() {
+    final MotionGate gate = createGate(WIDTH * HEIGHT);
+    final byte[] plane = stripes(4, 0);
+    assertTrue(gate.shouldRun(plane, WIDTH, 0));
+
+    // Sensor-noise-sized changes everywhere stay below the block threshold.
+    final byte[] noisy = plane.clone();
+    for (int i = 0; i < noisy.length; i += 2) {
+      noisy[i] = (byte) ((noisy[i] & 0xFF) == 0 ? 3 : 252);
+    }
+    assertFalse(gate.shouldRun(noisy, WIDTH, 10));
+    assertEquals(0.0f, gate.getLastMotion(), 0.0f);
+  }
+
+  @Test
+  public void staticFramesAreSkippedUntilStale() {
+    final MotionGate gate = createGate(256);
+    final byte[] plane = new byte[WIDTH * HEIGHT];
+    Arrays.fill(plane, (byte) 128);
+
+    assertTrue(gate.shouldRun(plane, WIDTH, 0));
+    for (long t = 33; t < MAX_STALENESS_MS; t += 33) {
+      assertFalse("frame at " + t + "ms", gate.shouldRun(plane, WIDTH, t));
+    }
+    assertTrue(gate.shouldRun(plane, WIDTH, MAX_STALENESS_MS));
+    // The staleness timer restarts from the frame that passed.
+    assertFalse(gate.shouldRun(plane, WIDTH, MAX_STALENESS_MS + 33));
+
+    assertEquals(2, gate.getFrameCount() - gate.getSkippedCount());
+    assertEquals(
+        (float) gate.getSkippedCount() / gate.getFrameCount(), gate.getSkippedFraction(), 0.0f);
+  }
+
+  @Test
+  public void resetLetsTheNextFramePass() {
+    final MotionGate gate = createGate(256);
+    final byte[] plane = new byte[WIDTH * HEIGHT];
+    assertTrue(gate.shouldRun(plane, WIDTH, 0));
+    assertFalse(gate.shouldRun(plane, WIDTH, 10));
+    gate.reset();
+    assertTrue(gate.shouldRun(plane, WIDTH, 20));
+  }
+}